@@ -0,0 +1,157 @@
+package com.hmdp.config;
+
+import cn.hutool.core.util.StrUtil;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.redis.connection.RedisConfiguration;
+import org.springframework.data.redis.connection.RedisPassword;
+import org.springframework.data.redis.connection.RedisSentinelConfiguration;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettucePoolingClientConfiguration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.HashSet;
+
+/**
+ * one lettuce pool per workload, so blocking XREADGROUP calls and lua scripts of a hot sale
+ * can't take the connections the per-request cache and login lookups need:
+ * <ul>
+ *     <li>redisConnectionFactory / stringRedisTemplate: cache, interceptors and everything else, spring.redis.lettuce.pool</li>
+ *     <li>streamRedisConnectionFactory / streamRedisTemplate: blocking stream reads of the order consumers</li>
+ *     <li>scriptRedisConnectionFactory / scriptRedisTemplate: seckill and delay queue lua scripts</li>
+ * </ul>
+ */
+@Configuration
+public class RedisPoolConfig {
+
+    @Bean
+    @Primary
+    public LettuceConnectionFactory redisConnectionFactory(RedisProperties redisProperties) {
+        // 没有配置spring.redis.lettuce.pool时使用commons-pool2的默认值
+        RedisProperties.Pool pool = redisProperties.getLettuce().getPool();
+        if (pool == null) {
+            pool = new RedisProperties.Pool();
+        }
+        Duration timeout = redisProperties.getTimeout() == null ? Duration.ofSeconds(2) : redisProperties.getTimeout();
+        long maxWaitMs = pool.getMaxWait() == null ? -1L : pool.getMaxWait().toMillis();
+        return connectionFactory("redis-cache", redisProperties, pool.getMaxActive(), pool.getMaxIdle(), pool.getMinIdle(),
+                maxWaitMs, timeout.toMillis());
+    }
+
+    @Bean
+    @Primary
+    public StringRedisTemplate stringRedisTemplate(LettuceConnectionFactory redisConnectionFactory) {
+        return new StringRedisTemplate(redisConnectionFactory);
+    }
+
+    /**
+     * every order consumer parks one connection in XREADGROUP BLOCK 2000, size it above max-consumers
+     * (or partitions), the command timeout has to be longer than the block time
+     */
+    @Bean
+    public LettuceConnectionFactory streamRedisConnectionFactory(
+            RedisProperties redisProperties,
+            @Value("${hmdp.redis.stream.max-active:8}") int maxActive,
+            @Value("${hmdp.redis.stream.max-wait-ms:1000}") long maxWaitMs,
+            @Value("${hmdp.redis.stream.timeout-ms:5000}") long timeoutMs) {
+        return connectionFactory("redis-stream", redisProperties, maxActive, maxActive, 1, maxWaitMs, timeoutMs);
+    }
+
+    @Bean
+    public StringRedisTemplate streamRedisTemplate(@Qualifier("streamRedisConnectionFactory") LettuceConnectionFactory connectionFactory) {
+        return new StringRedisTemplate(connectionFactory);
+    }
+
+    @Bean
+    public LettuceConnectionFactory scriptRedisConnectionFactory(
+            RedisProperties redisProperties,
+            @Value("${hmdp.redis.script.max-active:16}") int maxActive,
+            @Value("${hmdp.redis.script.max-wait-ms:200}") long maxWaitMs,
+            @Value("${hmdp.redis.script.timeout-ms:1000}") long timeoutMs) {
+        return connectionFactory("redis-script", redisProperties, maxActive, maxActive, 1, maxWaitMs, timeoutMs);
+    }
+
+    @Bean
+    public StringRedisTemplate scriptRedisTemplate(@Qualifier("scriptRedisConnectionFactory") LettuceConnectionFactory connectionFactory) {
+        return new StringRedisTemplate(connectionFactory);
+    }
+
+    /**
+     * standalone (host / port or url) and sentinel from spring.redis, with its password, database, ssl and client name.
+     * Cluster is rejected: the lua scripts build their keys from ARGV, which a cluster can't route
+     * @param name jmx name prefix of the pool, its borrow wait times and active / idle / waiting counts
+     *             are published under org.apache.commons.pool2:type=GenericObjectPool,name={name}
+     */
+    private static LettuceConnectionFactory connectionFactory(String name, RedisProperties redisProperties, int maxActive, int maxIdle,
+                                                              int minIdle, long maxWaitMs, long timeoutMs) {
+        if (redisProperties.getCluster() != null) {
+            throw new IllegalStateException("spring.redis.cluster is not supported, the seckill lua scripts need a single node or sentinel");
+        }
+        boolean ssl = redisProperties.isSsl();
+        RedisConfiguration redisConfig;
+        if (redisProperties.getSentinel() != null) {
+            RedisProperties.Sentinel sentinel = redisProperties.getSentinel();
+            RedisSentinelConfiguration sentinelConfig = new RedisSentinelConfiguration(sentinel.getMaster(), new HashSet<>(sentinel.getNodes()));
+            sentinelConfig.setDatabase(redisProperties.getDatabase());
+            sentinelConfig.setPassword(RedisPassword.of(redisProperties.getPassword()));
+            if (sentinel.getPassword() != null) {
+                sentinelConfig.setSentinelPassword(RedisPassword.of(sentinel.getPassword()));
+            }
+            redisConfig = sentinelConfig;
+        } else {
+            RedisStandaloneConfiguration standalone = new RedisStandaloneConfiguration(redisProperties.getHost(), redisProperties.getPort());
+            standalone.setPassword(RedisPassword.of(redisProperties.getPassword()));
+            if (StrUtil.isNotBlank(redisProperties.getUrl())) {
+                // redis://[:password@]host[:port] 或 rediss://，覆盖host / port / password
+                URI uri = URI.create(redisProperties.getUrl());
+                ssl = "rediss".equals(uri.getScheme());
+                standalone.setHostName(uri.getHost());
+                if (uri.getPort() > 0) {
+                    standalone.setPort(uri.getPort());
+                }
+                if (uri.getUserInfo() != null) {
+                    String userInfo = uri.getUserInfo();
+                    int colon = userInfo.indexOf(':');
+                    standalone.setPassword(RedisPassword.of(colon < 0 ? userInfo : userInfo.substring(colon + 1)));
+                }
+            }
+            standalone.setDatabase(redisProperties.getDatabase());
+            redisConfig = standalone;
+        }
+
+        GenericObjectPoolConfig<?> poolConfig = new GenericObjectPoolConfig<>();
+        poolConfig.setMaxTotal(maxActive);
+        poolConfig.setMaxIdle(maxIdle);
+        poolConfig.setMinIdle(minIdle);
+        poolConfig.setMaxWaitMillis(maxWaitMs);
+        // 每个连接池单独的JMX指标：活跃/空闲/等待数，借用连接的平均/最大等待时间
+        poolConfig.setJmxEnabled(true);
+        poolConfig.setJmxNamePrefix(name);
+
+        LettucePoolingClientConfiguration.LettucePoolingClientConfigurationBuilder builder = LettucePoolingClientConfiguration.builder();
+        if (ssl) {
+            builder.useSsl();
+        }
+        if (StrUtil.isNotBlank(redisProperties.getClientName())) {
+            builder.clientName(redisProperties.getClientName());
+        }
+        LettucePoolingClientConfiguration clientConfig = builder
+                .poolConfig(poolConfig)
+                .commandTimeout(Duration.ofMillis(timeoutMs))
+                .build();
+        LettuceConnectionFactory connectionFactory = redisConfig instanceof RedisSentinelConfiguration
+                ? new LettuceConnectionFactory((RedisSentinelConfiguration) redisConfig, clientConfig)
+                : new LettuceConnectionFactory((RedisStandaloneConfiguration) redisConfig, clientConfig);
+        // 默认所有非阻塞命令共用一条原生连接，连接池形同虚设；关闭后每个命令都从本池借连接，池之间才真正隔离
+        connectionFactory.setShareNativeConnection(false);
+        return connectionFactory;
+    }
+}
@@ -1,19 +1,64 @@
 package com.hmdp.config;
 
+import cn.hutool.core.util.StrUtil;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
+import org.redisson.config.SentinelServersConfig;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.net.URI;
+
+/**
+ * redisson on the same spring.redis config as the lettuce pools of RedisPoolConfig:
+ * host / port or url, password, database, ssl, client name, timeout and sentinel. Cluster is rejected there as well
+ */
 @Configuration
 public class RedissonConfig {
 
     @Bean
-    public RedissonClient redissonClient() {
+    public RedissonClient redissonClient(RedisProperties redisProperties) {
+        if (redisProperties.getCluster() != null) {
+            throw new IllegalStateException("spring.redis.cluster is not supported, the seckill lua scripts need a single node or sentinel");
+        }
         Config config = new Config();
-        config.useSingleServer().setAddress("redis://127.0.0.1:6379");
+        int timeout = redisProperties.getTimeout() == null ? 3000 : (int) redisProperties.getTimeout().toMillis();
+        String scheme = redisProperties.isSsl() ? "rediss://" : "redis://";
+
+        if (redisProperties.getSentinel() != null) {
+            RedisProperties.Sentinel sentinel = redisProperties.getSentinel();
+            SentinelServersConfig sentinelConfig = config.useSentinelServers()
+                    .setMasterName(sentinel.getMaster())
+                    .setDatabase(redisProperties.getDatabase())
+                    .setPassword(StrUtil.emptyToNull(redisProperties.getPassword()))
+                    .setClientName(redisProperties.getClientName())
+                    .setTimeout(timeout);
+            for (String node : sentinel.getNodes()) {
+                sentinelConfig.addSentinelAddress(scheme + node);
+            }
+            return Redisson.create(config);
+        }
 
+        String address = scheme + redisProperties.getHost() + ":" + redisProperties.getPort();
+        String password = redisProperties.getPassword();
+        if (StrUtil.isNotBlank(redisProperties.getUrl())) {
+            // redis://[:password@]host[:port] 或 rediss://，覆盖host / port / password
+            URI uri = URI.create(redisProperties.getUrl());
+            address = uri.getScheme() + "://" + uri.getHost() + ":" + (uri.getPort() > 0 ? uri.getPort() : 6379);
+            if (uri.getUserInfo() != null) {
+                String userInfo = uri.getUserInfo();
+                int colon = userInfo.indexOf(':');
+                password = colon < 0 ? userInfo : userInfo.substring(colon + 1);
+            }
+        }
+        config.useSingleServer()
+                .setAddress(address)
+                .setDatabase(redisProperties.getDatabase())
+                .setPassword(StrUtil.emptyToNull(password))
+                .setClientName(redisProperties.getClientName())
+                .setTimeout(timeout);
         return Redisson.create(config);
     }
 }
@@ -0,0 +1,38 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IVoucherOrderService;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ *  运维接口，只能通过X-Ops-Token访问，见OpsInterceptor
+ * </p>
+ */
+@RestController
+@RequestMapping("/ops/voucher-order")
+public class OpsController {
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @PostMapping("consumer/pause")
+    public Result pauseOrderConsumer() {
+        // 发布前暂停订单消费，处理中的订单会完成并ack
+        return voucherOrderService.pauseOrderConsumer();
+    }
+
+    @PostMapping("consumer/resume")
+    public Result resumeOrderConsumer() {
+        return voucherOrderService.resumeOrderConsumer();
+    }
+
+    @PostMapping("dlq/replay")
+    public Result replayDeadOrders(@RequestParam(value = "count", defaultValue = "100") Integer count) {
+        // 死信订单重新投递到订单队列
+        return voucherOrderService.replayDeadOrders(count);
+    }
+}
@@ -45,6 +45,16 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 查询秒杀券在redis中的剩余库存（分段库存为各段之和）
+     * @param voucherId 优惠券id
+     * @return 剩余库存
+     */
+    @GetMapping("seckill/stock/{id}")
+    public Result querySeckillStock(@PathVariable("id") Long voucherId) {
+        return Result.ok(voucherService.querySeckillStock(voucherId));
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
@@ -3,10 +3,7 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
 
@@ -30,4 +27,10 @@ public class VoucherOrderController {
         // 下单，扣库存
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    @GetMapping("status/{id}")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        // 查询订单落库状态，只读redis
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
 }
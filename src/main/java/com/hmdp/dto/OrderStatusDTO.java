@@ -0,0 +1,13 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class OrderStatusDTO {
+    private Long orderId;
+    /**
+     * QUEUED / PERSISTED / FAILED
+     */
+    private String status;
+    private String reason;
+}
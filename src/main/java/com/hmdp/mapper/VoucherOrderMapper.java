@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,12 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * insert orders with one multi-row INSERT ... ON DUPLICATE KEY UPDATE id = id statement,
+     * rows hitting the primary key or the (user_id, voucher_id) unique index are skipped,
+     * any other error still fails the statement. Needs useAffectedRows=true on the jdbc url
+     * @param orders orders to insert, must not be empty
+     * @return rows actually inserted
+     */
+    int insertSkipDuplicateBatch(@Param("orders") List<VoucherOrder> orders);
 }
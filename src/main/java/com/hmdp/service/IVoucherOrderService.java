@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -18,5 +21,23 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result createVoucherOrder(Long voucherId, Long userId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    Map<Long, String> handleVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    Map<Long, String> createVoucherOrder(VoucherOrder voucherOrder);
+
+    Map<Long, String> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    Result replayDeadOrders(Integer count);
+
+    Result queryOrderStatus(Long orderId);
+
+    boolean cancelUnpaidOrder(VoucherOrder voucherOrder);
+
+    Result pauseOrderConsumer();
+
+    Result resumeOrderConsumer();
+
+    void startOrderTimeouts();
+
+    void stopOrderTimeouts();
 }
@@ -4,6 +4,7 @@ import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
@@ -11,17 +12,23 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
 import org.springframework.data.geo.GeoResults;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.domain.geo.GeoReference;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
@@ -29,7 +36,10 @@ import java.util.*;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -41,6 +51,7 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
@@ -50,6 +61,94 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * bloom filter of all shop ids in front of cache:shop:{id}, unknown ids never reach redis or mysql
+     */
+    @Value("${hmdp.cache.bloom.enabled:true}")
+    private boolean bloomEnabled;
+
+    @Value("${hmdp.cache.bloom.expected-insertions:1000000}")
+    private long bloomExpectedInsertions;
+
+    @Value("${hmdp.cache.bloom.fpp:0.01}")
+    private double bloomFpp;
+
+    /**
+     * deleted shops stay in the filter until the next rebuild
+     */
+    @Value("${hmdp.cache.bloom.rebuild-interval-ms:3600000}")
+    private long bloomRebuildIntervalMs;
+
+    private RedisBloomFilter shopBloomFilter;
+
+    private final ScheduledExecutorService bloomRebuildScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "shop-bloom-rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        if (!bloomEnabled) {
+            return;
+        }
+        shopBloomFilter = new RedisBloomFilter(BLOOM_SHOP_KEY, bloomExpectedInsertions, bloomFpp, stringRedisTemplate);
+        shopBloomFilter.subscribe(redisMessageListenerContainer);
+        cacheClient.registerBloomFilter(CACHE_SHOP_KEY, shopBloomFilter);
+        bloomRebuildScheduler.scheduleWithFixedDelay(this::rebuildShopBloomFilter, 0, bloomRebuildIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        bloomRebuildScheduler.shutdownNow();
+    }
+
+    /**
+     * one node per interval rebuilds the filter from tb_shop, the others load the bitmap from redis
+     */
+    private void rebuildShopBloomFilter() {
+        try {
+            // 1. 每个周期只有拿到租约的节点重建
+            Boolean leased = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(BLOOM_SHOP_REBUILD_KEY, "1", bloomRebuildIntervalMs, TimeUnit.MILLISECONDS);
+            if (!BooleanUtil.isTrue(leased)) {
+                if (!shopBloomFilter.isReady()) {
+                    shopBloomFilter.reload();
+                }
+                return;
+            }
+            // 2. rebuild from every id
+            List<Long> ids = listObjs(new QueryWrapper<Shop>().select("id"), o -> Long.valueOf(o.toString()));
+            shopBloomFilter.rebuild(ids);
+            // 3. shops saved during the rebuild went to the replaced bitmap, add them again
+            long maxId = ids.stream().mapToLong(Long::longValue).max().orElse(0L);
+            listObjs(new QueryWrapper<Shop>().select("id").gt("id", maxId), o -> Long.valueOf(o.toString()))
+                    .forEach(shopBloomFilter::add);
+            log.info("shop bloom filter rebuilt from {} ids", ids.size());
+        } catch (Exception e) {
+            log.error("rebuild shop bloom filter error", e);
+        }
+    }
+
+    @Override
+    public Result saveShop(Shop shop) {
+        // 1. insert into mysql
+        this.save(shop);
+
+        // 2. add to the bloom filter, otherwise the new shop reads as nonexistent until the next rebuild
+        if (shopBloomFilter != null) {
+            try {
+                shopBloomFilter.add(shop.getId());
+            } catch (Exception e) {
+                log.error("add shop {} to bloom filter error", shop.getId(), e);
+            }
+        }
+        return Result.ok(shop.getId());
+    }
+
     @Override
     @Transactional
     public Result update(Shop shop) {
@@ -61,8 +160,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 1. update mysql
         this.updateById(shop);
 
-        // 2. delete redis cache
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        // 2. delete redis cache, and the L1 of every node
+        cacheClient.delete(CACHE_SHOP_KEY + id);
 
         return Result.ok();
     }
@@ -111,12 +210,10 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             map.put(shopIdStr, distance);
         }); // 使用 stream 的 skip 逻辑分页
 
-        // 5. query shop by shop id from mysql
-        String shopIdsStr = StrUtil.join(", ", shopIds);
-        List<Shop> shops = this.query()
-                .in("id", shopIds)
-                .last("order by field(id, " + shopIdsStr + " )")
-                .list();
+        // 5. query shops by id from cache:shop:{id}, misses from mysql in one query
+        List<Shop> shops = cacheClient.queryBatch(CACHE_SHOP_KEY, shopIds, Shop.class,
+                ids -> listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
         // set shop distance
         for (Shop shop : shops) {
             shop.setDistance(map.get(shop.getId().toString()).getValue());
@@ -1,36 +1,45 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.TimedCache;
+import com.hmdp.dto.OrderStatusDTO;
 import com.hmdp.dto.Result;
-import com.hmdp.dto.UserDTO;
-import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.IOrderQueue;
+import com.hmdp.utils.RedisDelayQueue;
 import com.hmdp.utils.RedisIdWorker;
-import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SeckillAdmissionFilter;
+import com.hmdp.utils.SeckillRateLimiter;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.time.Duration;
-import java.time.LocalDateTime;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.ORDER_CANCELLED_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_CANCELLED_TTL;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_TIMEOUT_QUEUE_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_TTL;
 
 /**
  * <p>
@@ -53,9 +62,24 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * lua scripts run on their own pool, see RedisPoolConfig
+     */
+    @Resource
+    private StringRedisTemplate scriptRedisTemplate;
+
     @Resource
     private RedissonClient redissonClient;
 
+    @Resource
+    private SeckillAdmissionFilter admissionFilter;
+
+    @Resource
+    private SeckillRateLimiter rateLimiter;
+
+    @Resource
+    private IOrderQueue orderQueue;
+
     public static final DefaultRedisScript<Long> SECKILL_SCRIPT;
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
@@ -63,88 +87,103 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setResultType(Long.class);
     }
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    /**
+     * seckill.lua called without an order id: replies {status} or {0, orderId}
+     */
+    @SuppressWarnings("rawtypes")
+    public static final DefaultRedisScript<List> SECKILL_ID_SCRIPT;
+    static {
+        SECKILL_ID_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_ID_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_ID_SCRIPT.setResultType(List.class);
+    }
 
-    @PostConstruct
-    public void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+    /**
+     * generate the order id inside seckill.lua instead of calling RedisIdWorker first
+     */
+    @Value("${hmdp.seckill.order.id-in-script:false}")
+    private boolean orderIdInScript;
+
+    /**
+     * false leaves tb_seckill_voucher.stock to the stock reconciler instead of one hot-row update per order
+     */
+    @Value("${hmdp.seckill.stock.decrement-per-order:true}")
+    private boolean decrementPerOrder;
+
+    /**
+     * polled order status is cached locally for a short while, clients poll the same order repeatedly
+     */
+    @Value("${hmdp.seckill.order.status-cache-ms:500}")
+    private long statusCacheMillis;
+
+    private TimedCache<Long, Map<Object, Object>> orderStatusCache;
+
+    public static final DefaultRedisScript<Long> SECKILL_CANCEL_SCRIPT;
+    static {
+        SECKILL_CANCEL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_CANCEL_SCRIPT.setLocation(new ClassPathResource("seckill-cancel.lua"));
+        SECKILL_CANCEL_SCRIPT.setResultType(Long.class);
     }
 
-    private class VoucherOrderHandler implements Runnable {
+    /**
+     * unpaid orders are cancelled and their stock returned after this long, 0 keeps them forever
+     */
+    @Value("${hmdp.seckill.order.pay-timeout-seconds:900}")
+    private long payTimeoutSeconds;
 
-        public static final String queueName = "stream.orders";
+    @Value("${hmdp.seckill.order.cancel.poll-ms:500}")
+    private long cancelPollMillis;
 
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    // 获取消息队列中待更新到数据库中的order
-                    // XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders >
-                    List<MapRecord<String, Object, Object>> lst = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("group1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
-
-                    // 2. 判断消息获取是否成功
-                    if (lst == null || lst.isEmpty()) {
-                        // 2.1 获取失败，没有消息，继续下一次循环
-                        continue;
-                    }
-                    // 3. 有消息，下单，在数据库中创建订单
-                    // 解析消息
-                    MapRecord<String, Object, Object> record = lst.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    handleVoucherOrder(voucherOrder);
-                    // 4. ACK确认读取出的消息被消费掉了
-                    // SACK stream.orders group1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "group1", record.getId());
-                } catch (Exception e) {
-                    log.error("VoucherOrderHandler error", e);
-                    handlePendingList();
-                }
-            }
-        }
+    @Value("${hmdp.seckill.order.cancel.batch-size:100}")
+    private int cancelBatchSize;
 
-        private void handlePendingList() {
-            while (true) {
-                try {
-                    // 获取消息队列中待更新到数据库中的order
-                    // XREADGROUP GROUP g1 c1 COUNT 1 STREAMS stream.orders 0
-                    List<MapRecord<String, Object, Object>> lst = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("group1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-
-                    // 2. 判断消息获取是否成功
-                    if (lst == null || lst.isEmpty()) {
-                        // 2.1 获取失败，pending list没有消息，继续下一次循环
-                        break;
-                    }
+    /**
+     * a claimed timeout is claimed again after this long if its cancellation did not finish
+     */
+    @Value("${hmdp.seckill.order.cancel.lease-ms:30000}")
+    private long cancelLeaseMillis;
 
-                    // 3. 有消息，下单，在数据库中创建订单
-                    // 解析消息
-                    MapRecord<String, Object, Object> record = lst.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    handleVoucherOrder(voucherOrder);
-                    // 4. ACK确认读取出的消息被消费掉了
-                    // SACK stream.orders group1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "group1", record.getId());
-                } catch (Exception e) {
-                    log.error("VoucherOrderHandler error", e);
-                    try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                }
-            }
+    private RedisDelayQueue orderTimeoutQueue;
+
+    /**
+     * transactional proxy of this service, resolved at injection time: order queue and delay queue threads
+     * have no current proxy for AopContext
+     */
+    @Lazy
+    @Resource
+    private IVoucherOrderService self;
+
+    @PostConstruct
+    public void init() {
+        orderStatusCache = CacheUtil.newTimedCache(statusCacheMillis);
+        orderStatusCache.schedulePrune(Math.max(statusCacheMillis, 1000L));
+        // 订单队列的消费者和超时队列由OrderConsumerLifecycle在容器启动完成后启动
+        orderTimeoutQueue = new RedisDelayQueue(ORDER_TIMEOUT_QUEUE_KEY, scriptRedisTemplate);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        orderStatusCache.cancelPruneSchedule();
+    }
+
+    /**
+     * poll the order timeout queue, started by OrderConsumerLifecycle and the ops resume endpoint
+     */
+    @Override
+    public void startOrderTimeouts() {
+        if (payTimeoutSeconds > 0) {
+            orderTimeoutQueue.start(cancelPollMillis, cancelBatchSize, cancelLeaseMillis, this::handleOrderTimeout);
         }
     }
 
+    /**
+     * stop polling the order timeout queue, claimed timeouts not handled yet are claimed again after the lease
+     */
+    @Override
+    public void stopOrderTimeouts() {
+        orderTimeoutQueue.stop();
+    }
+
     /*
     // jdk的阻塞队列可能内存溢出，数据安全问题
     private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
@@ -165,60 +204,259 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }
     */
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        // 获取分布式锁，但理论上通过lua脚本在redis中已经可以保证不会发生超卖问题
-        Long userId = voucherOrder.getUserId(); // 子线程无法获取thread local
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        boolean lockGet = lock.tryLock();
-        if (!lockGet) {
-            log.error("VoucherOrderHandler get lock error");
-            return;
+    /**
+     * persist orders delivered by the order queue, batches go through one multi-row insert
+     * @return order id -> reason of rejected orders
+     */
+    @Override
+    public Map<Long, String> handleVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 0. 发布失败后已经归还库存的订单不再落库，否则同一笔订单既在mysql中又回到了库存
+        Map<Long, String> failures = new HashMap<>(4);
+        List<VoucherOrder> liveOrders = dropCancelledOrders(voucherOrders, failures);
+        if (!liveOrders.isEmpty()) {
+            failures.putAll(liveOrders.size() == 1
+                    ? handleVoucherOrder(liveOrders.get(0))
+                    : self.createVoucherOrders(liveOrders));
         }
+        // 落库成功的订单进入超时取消队列
+        if (payTimeoutSeconds > 0) {
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(payTimeoutSeconds);
+            Map<String, Long> deadlines = new HashMap<>(voucherOrders.size());
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                if (!failures.containsKey(voucherOrder.getId())) {
+                    deadlines.put(voucherOrder.getId().toString(), deadline);
+                }
+            }
+            orderTimeoutQueue.addAll(deadlines);
+        }
+        return failures;
+    }
 
-        try {
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            lock.unlock();
+    /**
+     * EXISTS order:cancelled:{id} of every order in one pipeline, the marker is set by seckill-cancel.lua
+     * @param failures cancelled orders are added here
+     * @return orders without the marker
+     */
+    private List<VoucherOrder> dropCancelledOrders(List<VoucherOrder> voucherOrders, Map<Long, String> failures) {
+        List<Object> cancelled = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                conn.exists(ORDER_CANCELLED_KEY + voucherOrder.getId());
+            }
+            return null;
+        });
+        List<VoucherOrder> liveOrders = new ArrayList<>(voucherOrders.size());
+        for (int i = 0; i < voucherOrders.size(); i++) {
+            VoucherOrder voucherOrder = voucherOrders.get(i);
+            if (Boolean.TRUE.equals(cancelled.get(i))) {
+                log.warn("order {} was cancelled before it was persisted, dropped", voucherOrder.getId());
+                failures.put(voucherOrder.getId(), "order cancelled");
+            } else {
+                liveOrders.add(voucherOrder);
+            }
         }
+        return liveOrders;
     }
 
-    private IVoucherOrderService proxy;
+    /**
+     * an order reached its pay deadline: cancel it if still unpaid, then return its stock in redis.
+     * Both steps are idempotent, a failure leaves the order in the delay queue to be retried after the lease
+     */
+    private void handleOrderTimeout(String member) {
+        VoucherOrder voucherOrder = getById(Long.valueOf(member));
+        if (voucherOrder == null) {
+            return;
+        }
+        // 1. 未支付的订单取消，已支付的订单不处理
+        boolean cancelled = voucherOrder.getStatus() == 4;
+        if (cancelled && Boolean.TRUE.equals(stringRedisTemplate.hasKey(ORDER_CANCELLED_KEY + voucherOrder.getId()))) {
+            // 已取消且库存已归还，重复投递
+            return;
+        }
+        if (voucherOrder.getStatus() == 1) {
+            cancelled = self.cancelUnpaidOrder(voucherOrder);
+        }
+        if (!cancelled) {
+            return;
+        }
+        // 2. redis中移除已购用户，归还库存，广播清除售罄标记
+        scriptRedisTemplate.execute(
+                SECKILL_CANCEL_SCRIPT,
+                Collections.emptyList(),
+                voucherOrder.getVoucherId().toString(),
+                voucherOrder.getUserId().toString(),
+                voucherOrder.getId().toString(),
+                ORDER_CANCELLED_TTL.toString()
+        );
+        log.info("unpaid order {} cancelled", voucherOrder.getId());
+    }
+
+    private Map<Long, String> handleVoucherOrder(VoucherOrder voucherOrder) {
+        // lua脚本保证一人一单，落库由唯一索引 + ON DUPLICATE KEY 保证幂等，不再需要分布式锁
+        return self.createVoucherOrder(voucherOrder);
+    }
+
+    @Override
+    public Result pauseOrderConsumer() {
+        // 超时取消同样暂停，否则暂停期间未落库的订单会被当作未支付取消
+        stopOrderTimeouts();
+        orderQueue.pause();
+        return Result.ok();
+    }
+
+    @Override
+    public Result resumeOrderConsumer() {
+        orderQueue.resume();
+        startOrderTimeouts();
+        return Result.ok();
+    }
+
+    /**
+     * move orders from the dead letter queue back to the order queue
+     * @param count max orders to replay
+     * @return number of replayed orders
+     */
+    @Override
+    public Result replayDeadOrders(Integer count) {
+        return Result.ok(orderQueue.replayDeadLetters(count));
+    }
+
+    /**
+     * status of an order returned by seckillVoucher, answered from order:status:{id} only,
+     * polling clients never reach mysql
+     * @param orderId order id
+     * @return QUEUED / PERSISTED / FAILED with the reason
+     */
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        Long userId = UserHolder.getUser().getId();
+        // 1. 本地短时缓存
+        Map<Object, Object> status = orderStatusCache.get(orderId, false);
+        if (status == null) {
+            // 2. HGETALL order:status:{id}
+            status = stringRedisTemplate.opsForHash().entries(ORDER_STATUS_KEY + orderId);
+            orderStatusCache.put(orderId, status);
+        }
+        // 3. 不存在或者不是自己的订单
+        if (status.isEmpty() || !userId.toString().equals(status.get("userId"))) {
+            return Result.fail("order status not found");
+        }
+        OrderStatusDTO orderStatusDTO = new OrderStatusDTO();
+        orderStatusDTO.setOrderId(orderId);
+        orderStatusDTO.setStatus((String) status.get("status"));
+        orderStatusDTO.setReason((String) status.get("reason"));
+        return Result.ok(orderStatusDTO);
+    }
 
     @Override
     public Result seckillVoucher(Long voucherId) {
         Long userId = UserHolder.getUser().getId();
+        // 0. 本地过滤：已售罄或已购买过的请求不再访问redis
+        if (admissionFilter.isSoldOut(voucherId)) {
+            return Result.fail("lack of stock");
+        }
+        if (admissionFilter.hasBought(voucherId, userId)) {
+            return Result.fail("already bought before");
+        }
+        // 0.1 按剩余库存限流，超出的请求直接返回，不进入lua脚本
+        if (!rateLimiter.tryAcquire(voucherId)) {
+            return Result.fail("busy, please retry");
+        }
+
         // 1. execute lua script
         // 判断是否有秒杀资格
-        long orderId = redisIdWorker.nextId("order");
-        Long res = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                userId.toString(),
-                String.valueOf(orderId)
-        ); // 执行完后消息已添加到了mq
+        long orderId;
+        int resStatus;
+        if (orderIdInScript) {
+            // 订单id在脚本中校验通过后生成，一次redis往返，序列号只为真实订单递增
+            List<Object> res = scriptRedisTemplate.execute(
+                    SECKILL_ID_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(),
+                    userId.toString(),
+                    "",
+                    String.valueOf(orderQueue.partitions()),
+                    String.valueOf(RedisIdWorker.BEGIN_TIMESTAMP),
+                    String.valueOf(RedisIdWorker.zoneOffsetSeconds(System.currentTimeMillis())),
+                    orderQueue.publishedByScript() ? "1" : "0",
+                    ORDER_STATUS_TTL.toString()
+            ); // 执行完后消息已添加到了mq
+            resStatus = ((Long) res.get(0)).intValue();
+            orderId = resStatus == 0 ? Long.parseLong((String) res.get(1)) : 0L;
+        } else {
+            orderId = redisIdWorker.nextId("order");
+            Long res = scriptRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(),
+                    userId.toString(),
+                    String.valueOf(orderId),
+                    String.valueOf(orderQueue.partitions()),
+                    "",
+                    "",
+                    orderQueue.publishedByScript() ? "1" : "0",
+                    ORDER_STATUS_TTL.toString()
+            ); // 执行完后消息已添加到了mq
+            resStatus = res.intValue();
+        }
 
         // 2. lua result
-        int resStatus = res.intValue();
+        if (resStatus == 1) {
+            admissionFilter.markSoldOut(voucherId);
+        } else if (resStatus == 0 || resStatus == 2) {
+            admissionFilter.markBought(voucherId, userId);
+        }
         // 2.1 res is not 0
         if (resStatus != 0) {
-            return Result.fail(resStatus == 1 ? "lack of stock" : "already bought before");
+            return Result.fail(seckillFailure(resStatus));
+        }
+        // 2.2 脚本没有写入stream时，由队列实现自己持久化订单
+        if (!orderQueue.publishedByScript()) {
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(orderId);
+            voucherOrder.setUserId(userId);
+            voucherOrder.setVoucherId(voucherId);
+            try {
+                orderQueue.publish(voucherOrder);
+            } catch (Exception e) {
+                // 订单没有持久化，归还脚本扣减的库存和购买资格
+                log.error("publish order {} failed, returning its stock", orderId, e);
+                scriptRedisTemplate.execute(SECKILL_CANCEL_SCRIPT, Collections.emptyList(),
+                        voucherId.toString(), userId.toString(), String.valueOf(orderId), ORDER_CANCELLED_TTL.toString());
+                return Result.fail("seckill failed, please retry");
+            }
         }
 
-        // 3. 获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-
-        // 4. return order id to front end
+        // 3. return order id to front end
         return Result.ok(orderId);
     }
 
+    /**
+     * @param resStatus non-zero result of seckill.lua
+     * @return error message for the front end
+     */
+    private static String seckillFailure(int resStatus) {
+        switch (resStatus) {
+            case 1:
+                return "lack of stock";
+            case 2:
+                return "already bought before";
+            case 3:
+                return "seckill not started";
+            case 4:
+                return "seckill ended";
+            default:
+                return "seckill failed";
+        }
+    }
+
     /*
     @Override
     public Result seckillVoucher(Long voucherId) {
         // 1. execute lua script
         Long userId = UserHolder.getUser().getId();
         // 判断是否有秒杀资格
-        Long res = stringRedisTemplate.execute(
+        Long res = scriptRedisTemplate.execute(
                 SECKILL_SCRIPT,
                 Collections.emptyList(),
                 voucherId.toString(),
@@ -335,33 +573,98 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     // 在mysql中创建订单，供消息队列的消费者调用
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        Long voucherId = voucherOrder.getVoucherId();
-
-        // 判断用户是否已经购买过了当前秒杀优惠券（保证一人一单）
-        // 存在超卖问题，用分布式锁解决
-        int cnt = this.query().eq("user_id", userId)
-                .eq("voucher_id", voucherId)
-                .count();
-        if (cnt > 0) {
-            log.error("createVoucherOrder error, already bought before");
-            return;
+    public Map<Long, String> createVoucherOrder(VoucherOrder voucherOrder) {
+        // 一人一单由lua脚本和(user_id, voucher_id)唯一索引保证，重复投递的订单被ON DUPLICATE KEY跳过
+        int inserted = getBaseMapper().insertSkipDuplicateBatch(Collections.singletonList(voucherOrder));
+        if (inserted == 0) {
+            // 重复投递的订单已经落库，不算失败
+            if (getById(voucherOrder.getId()) != null) {
+                return Collections.emptyMap();
+            }
+            log.error("createVoucherOrder error, already bought before, order id: {}", voucherOrder.getId());
+            return Collections.singletonMap(voucherOrder.getId(), "already bought before");
         }
 
-        // 6. 扣减库存
+        if (!decrementPerOrder) {
+            // mysql库存由对账任务按redis库存批量写回
+            return Collections.emptyMap();
+        }
+
+        // 6. 扣减库存，插入成功才扣减
         boolean success = seckillVoucherService.update()
                 .setSql("stock = stock - 1")
-                .eq("voucher_id", voucherId)
+                .eq("voucher_id", voucherOrder.getVoucherId())
                 // .eq("stock", seckillVoucher.getStock()) // 乐观锁，防止超卖
                 .gt("stock", 0) // 乐观锁，提高成功率
                 .update();
 
         if (!success) {
-            log.error("createVoucherOrder error, stock sold out");
-            return;
+            // 回滚已插入的订单
+            throw new RuntimeException("createVoucherOrder error, stock sold out, voucher id: " + voucherOrder.getVoucherId());
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * status 1 -> 4, the mysql stock is given back too when orders decrement it
+     * @return false if the order was paid or cancelled in the meantime
+     */
+    @Override
+    @Transactional
+    public boolean cancelUnpaidOrder(VoucherOrder voucherOrder) {
+        boolean cancelled = update()
+                .set("status", 4)
+                .eq("id", voucherOrder.getId())
+                .eq("status", 1)
+                .update();
+        if (cancelled && decrementPerOrder) {
+            seckillVoucherService.update()
+                    .setSql("stock = stock + 1")
+                    .eq("voucher_id", voucherOrder.getVoucherId())
+                    .update();
         }
+        return cancelled;
+    }
+
+    // 在mysql中批量创建订单，供消息队列的批量消费者调用
+    @Transactional
+    public Map<Long, String> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        Map<Long, String> failures = new HashMap<>();
+
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> orders = entry.getValue();
+
+            // 1. 每张券一条多行INSERT ... ON DUPLICATE KEY，已购买的用户和重复投递的订单被唯一索引跳过
+            int k = getBaseMapper().insertSkipDuplicateBatch(orders);
+            if (k < orders.size()) {
+                log.error("createVoucherOrders error, {} orders of voucher {} already exist", orders.size() - k, voucherId);
+                // 被忽略的订单中，id已经存在的是重复投递，其余是同一用户的另一笔订单
+                Set<Long> persisted = listByIds(orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                        .stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+                for (VoucherOrder order : orders) {
+                    if (!persisted.contains(order.getId())) {
+                        failures.put(order.getId(), "already bought before");
+                    }
+                }
+            }
+            if (k == 0 || !decrementPerOrder) {
+                continue;
+            }
 
-        this.save(voucherOrder);
+            // 2. 按实际插入的行数扣减库存 stock = stock - k
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + k)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", k)
+                    .update();
+            if (!success) {
+                // 回滚整个批次
+                throw new RuntimeException("createVoucherOrders error, stock sold out, voucher id: " + voucherId + ", orders: " + k);
+            }
+        }
+        return failures;
     }
 }
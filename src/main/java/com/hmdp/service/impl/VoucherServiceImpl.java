@@ -1,20 +1,42 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import static com.hmdp.utils.RedisConstants.SECKILL_DRIFT_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_META_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RECONCILE_LOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SEGMENTS_KEY;
 import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_USERS_KEY;
 
 /**
  * <p>
@@ -24,15 +46,75 @@ import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedissonClient redissonClient;
+
+    /**
+     * number of seckill:stock:{id}:{b} buckets new seckill vouchers are split into, 0 keeps one stock key
+     */
+    @Value("${hmdp.seckill.stock.segments:0}")
+    private int stockSegments;
+
+    /**
+     * vouchers starting within this many minutes get their redis metadata written ahead of time
+     */
+    @Value("${hmdp.seckill.prewarm.ahead-minutes:30}")
+    private long prewarmAheadMinutes;
+
+    @Value("${hmdp.seckill.prewarm.interval-ms:60000}")
+    private long prewarmIntervalMs;
+
+    /**
+     * seckill keys live this long after endTime
+     */
+    @Value("${hmdp.seckill.prewarm.expire-grace-seconds:3600}")
+    private long metaExpireGraceSeconds;
+
+    /**
+     * false stops the per-order stock update in mysql, the reconciler writes the redis stock back instead
+     */
+    @Value("${hmdp.seckill.stock.decrement-per-order:true}")
+    private boolean decrementPerOrder;
+
+    @Value("${hmdp.seckill.stock.reconcile-interval-ms:5000}")
+    private long reconcileIntervalMs;
+
+    /**
+     * |consumed stock - orders| above this is logged as an alert
+     */
+    @Value("${hmdp.seckill.stock.drift-alert:10}")
+    private long driftAlert;
+
+    private final ScheduledExecutorService seckillPrewarmScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "seckill-prewarm");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        seckillPrewarmScheduler.scheduleWithFixedDelay(this::prewarmSeckillVouchers, 0, prewarmIntervalMs, TimeUnit.MILLISECONDS);
+        seckillPrewarmScheduler.scheduleWithFixedDelay(this::reconcileSeckillStock, reconcileIntervalMs, reconcileIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        seckillPrewarmScheduler.shutdownNow();
+    }
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -53,7 +135,177 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        // 将库存写入redis
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 将库存和秒杀时间写入redis
+        cacheSeckillVoucher(seckillVoucher, true);
+    }
+
+    /**
+     * write the stock and the seckill:meta:{id} window seckill.lua checks, all keys expire after endTime
+     * @param seckillVoucher seckill voucher
+     * @param overwriteStock false keeps a stock already in redis, it may have been sold from since,
+     *                       and derives the initial stock from the mysql stock plus the orders placed
+     */
+    private void cacheSeckillVoucher(SeckillVoucher seckillVoucher, boolean overwriteStock) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        int stock = seckillVoucher.getStock();
+        // 1. 库存
+        Map<String, String> stockKeys = new HashMap<>(Math.max(stockSegments, 1) + 1);
+        if (stockSegments <= 0) {
+            stockKeys.put(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+        } else {
+            // 分段库存：库存平均分到K个桶，余数分给前几个桶
+            for (int b = 0; b < stockSegments; b++) {
+                int share = stock / stockSegments + (b < stock % stockSegments ? 1 : 0);
+                stockKeys.put(SECKILL_STOCK_KEY + voucherId + ":" + b, String.valueOf(share));
+            }
+            stockKeys.put(SECKILL_SEGMENTS_KEY + voucherId, String.valueOf(stockSegments));
+        }
+        if (overwriteStock) {
+            stringRedisTemplate.opsForValue().multiSet(stockKeys);
+        } else {
+            // MSETNX，任意一个key已存在就都不写
+            stringRedisTemplate.opsForValue().multiSetIfAbsent(stockKeys);
+        }
+
+        // 2. 秒杀时间窗口 seckill:meta:{id}，lua脚本用redis TIME判断
+        long begin = seckillVoucher.getBeginTime().atZone(ZoneId.systemDefault()).toEpochSecond();
+        long end = seckillVoucher.getEndTime().atZone(ZoneId.systemDefault()).toEpochSecond();
+        Map<String, String> meta = new HashMap<>(4);
+        meta.put("begin", String.valueOf(begin));
+        meta.put("end", String.valueOf(end));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_META_KEY + voucherId, meta);
+        // 2.1 初始库存只写一次(HSETNX)，对账用它计算redis消耗的库存
+        //     预热时mysql库存可能已经被扣减，加回未取消的订单数还原初始库存
+        if (overwriteStock) {
+            stringRedisTemplate.opsForHash().put(SECKILL_META_KEY + voucherId, "stock", String.valueOf(stock));
+        } else {
+            long orders = voucherOrderService.query()
+                    .eq("voucher_id", voucherId)
+                    .ne("status", 4)
+                    .count();
+            stringRedisTemplate.opsForHash().putIfAbsent(SECKILL_META_KEY + voucherId, "stock", String.valueOf(stock + orders));
+        }
+
+        // 3. 秒杀结束后过期，留出时间给还在队列中的订单
+        Date expireAt = new Date((end + metaExpireGraceSeconds) * 1000);
+        List<String> keys = new ArrayList<>(stockKeys.keySet());
+        keys.add(SECKILL_META_KEY + voucherId);
+        keys.add(SECKILL_USERS_KEY + voucherId);
+        for (String key : keys) {
+            stringRedisTemplate.expireAt(key, expireAt);
+        }
+    }
+
+    /**
+     * write redis metadata of vouchers starting within prewarmAheadMinutes that don't have it yet,
+     * e.g. vouchers created before a redis flush or directly in mysql
+     */
+    private void prewarmSeckillVouchers() {
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> seckillVouchers = seckillVoucherService.query()
+                    .le("begin_time", now.plusMinutes(prewarmAheadMinutes))
+                    .gt("end_time", now)
+                    .list();
+            for (SeckillVoucher seckillVoucher : seckillVouchers) {
+                if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_META_KEY + seckillVoucher.getVoucherId()))) {
+                    continue;
+                }
+                cacheSeckillVoucher(seckillVoucher, false);
+                log.info("prewarmed seckill voucher {}", seckillVoucher.getVoucherId());
+            }
+        } catch (Exception e) {
+            log.error("prewarm seckill vouchers error", e);
+        }
+    }
+
+    /**
+     * for every running seckill: write the redis stock back to tb_seckill_voucher (when orders don't
+     * decrement it themselves) and compare the stock consumed in redis with the orders in mysql.
+     * The result is kept in seckill:drift:{id}, orders still in the queue show up as a small positive drift
+     */
+    private void reconcileSeckillStock() {
+        RLock lock = redissonClient.getLock(SECKILL_RECONCILE_LOCK_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> seckillVouchers = seckillVoucherService.query()
+                    .le("begin_time", now)
+                    .gt("end_time", now.minusSeconds(metaExpireGraceSeconds))
+                    .list();
+            for (SeckillVoucher seckillVoucher : seckillVouchers) {
+                reconcileSeckillStock(seckillVoucher.getVoucherId());
+            }
+        } catch (Exception e) {
+            log.error("reconcile seckill stock error", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reconcileSeckillStock(Long voucherId) {
+        Object initialStock = stringRedisTemplate.opsForHash().get(SECKILL_META_KEY + voucherId, "stock");
+        if (initialStock == null) {
+            return;
+        }
+        // 1. redis中的剩余库存是权威值
+        int redisStock = querySeckillStock(voucherId);
+        if (!decrementPerOrder) {
+            // 每个周期合并为一次更新，代替每个订单一次 stock = stock - 1
+            seckillVoucherService.update()
+                    .set("stock", redisStock)
+                    .eq("voucher_id", voucherId)
+                    .ne("stock", redisStock)
+                    .update();
+        }
+
+        // 2. redis消耗的库存与mysql中未取消的订单数对比
+        long consumed = Long.parseLong(initialStock.toString()) - redisStock;
+        long orders = voucherOrderService.query()
+                .eq("voucher_id", voucherId)
+                .ne("status", 4)
+                .count();
+        long drift = consumed - orders;
+        Map<String, String> result = new HashMap<>(8);
+        result.put("redisStock", String.valueOf(redisStock));
+        result.put("consumed", String.valueOf(consumed));
+        result.put("orders", String.valueOf(orders));
+        result.put("drift", String.valueOf(drift));
+        result.put("checkedAt", String.valueOf(System.currentTimeMillis()));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_DRIFT_KEY + voucherId, result);
+        stringRedisTemplate.expire(SECKILL_DRIFT_KEY + voucherId, 1, TimeUnit.DAYS);
+        if (Math.abs(drift) > driftAlert) {
+            log.warn("seckill stock drift of voucher {}: consumed {} in redis, {} orders in mysql", voucherId, consumed, orders);
+        }
+    }
+
+    /**
+     * remaining seckill stock in redis, summed over all buckets for segmented stock
+     * @param voucherId voucher id
+     * @return remaining stock
+     */
+    @Override
+    public int querySeckillStock(Long voucherId) {
+        String segments = stringRedisTemplate.opsForValue().get(SECKILL_SEGMENTS_KEY + voucherId);
+        if (StrUtil.isBlank(segments)) {
+            String stock = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId);
+            return StrUtil.isBlank(stock) ? 0 : Integer.parseInt(stock);
+        }
+
+        int k = Integer.parseInt(segments);
+        List<String> keys = new ArrayList<>(k);
+        for (int b = 0; b < k; b++) {
+            keys.add(SECKILL_STOCK_KEY + voucherId + ":" + b);
+        }
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(keys);
+        int total = 0;
+        if (stocks != null) {
+            for (String stock : stocks) {
+                total += StrUtil.isBlank(stock) ? 0 : Integer.parseInt(stock);
+            }
+        }
+        return total;
     }
 }
@@ -0,0 +1,253 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * schema-aware binary codec for flat entities like Shop and Blog: no field names, a null bitmap,
+ * zigzag varints for integers and epoch seconds. The schema is the sorted list of instance fields,
+ * its hash is written first so a value written before a field change is rejected instead of misread
+ * <pre>
+ * int schema hash | null bitmap, one bit per field | non-null fields in schema order
+ * </pre>
+ */
+@Component
+public class BinaryCacheCodec implements CacheCodec {
+
+    public static final byte ID = 2;
+
+    private enum Kind { LONG, INT, DOUBLE, BOOLEAN, STRING, LOCAL_DATE_TIME }
+
+    private final Map<Class<?>, Optional<Schema>> schemas = new ConcurrentHashMap<>();
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "binary";
+    }
+
+    @Override
+    public boolean supports(Class<?> type) {
+        return schema(type).isPresent();
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Schema schema = schema(value.getClass())
+                .orElseThrow(() -> new IllegalArgumentException("unsupported type " + value.getClass()));
+        int n = schema.fields.length;
+        Object[] values = new Object[n];
+        byte[] nulls = new byte[(n + 7) >>> 3];
+        try {
+            for (int i = 0; i < n; i++) {
+                values[i] = schema.fields[i].get(value);
+                if (values[i] == null) {
+                    nulls[i >>> 3] |= 1 << (i & 7);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        writeInt(out, schema.hash);
+        out.write(nulls, 0, nulls.length);
+        for (int i = 0; i < n; i++) {
+            if (values[i] != null) {
+                write(out, schema.kinds[i], values[i]);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, int length, Class<T> type) {
+        Schema schema = schema(type).orElseThrow(() -> new IllegalArgumentException("unsupported type " + type));
+        ByteBuffer in = ByteBuffer.wrap(bytes, offset, length);
+        if (in.getInt() != schema.hash) {
+            throw new IllegalStateException("schema of " + type.getName() + " changed");
+        }
+        int n = schema.fields.length;
+        byte[] nulls = new byte[(n + 7) >>> 3];
+        in.get(nulls);
+        try {
+            T t = type.getDeclaredConstructor().newInstance();
+            for (int i = 0; i < n; i++) {
+                if ((nulls[i >>> 3] & (1 << (i & 7))) == 0) {
+                    schema.fields[i].set(t, read(in, schema.kinds[i]));
+                }
+            }
+            return t;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Optional<Schema> schema(Class<?> type) {
+        return schemas.computeIfAbsent(type, BinaryCacheCodec::createSchema);
+    }
+
+    /**
+     * instance fields of type and its superclasses sorted by name, empty if any field has no Kind
+     */
+    private static Optional<Schema> createSchema(Class<?> type) {
+        try {
+            type.getDeclaredConstructor();
+        } catch (NoSuchMethodException e) {
+            return Optional.empty();
+        }
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)) {
+                    fields.add(field);
+                }
+            }
+        }
+        fields.sort(Comparator.comparing(Field::getName));
+        Schema schema = new Schema();
+        schema.fields = fields.toArray(new Field[0]);
+        schema.kinds = new Kind[fields.size()];
+        StringBuilder signature = new StringBuilder(type.getName());
+        for (int i = 0; i < schema.fields.length; i++) {
+            Kind kind = kindOf(schema.fields[i].getType());
+            if (kind == null) {
+                return Optional.empty();
+            }
+            schema.fields[i].setAccessible(true);
+            schema.kinds[i] = kind;
+            signature.append(';').append(schema.fields[i].getName()).append(':').append(kind);
+        }
+        schema.hash = signature.toString().hashCode();
+        return Optional.of(schema);
+    }
+
+    private static Kind kindOf(Class<?> type) {
+        if (type == Long.class || type == long.class) {
+            return Kind.LONG;
+        }
+        if (type == Integer.class || type == int.class) {
+            return Kind.INT;
+        }
+        if (type == Double.class || type == double.class) {
+            return Kind.DOUBLE;
+        }
+        if (type == Boolean.class || type == boolean.class) {
+            return Kind.BOOLEAN;
+        }
+        if (type == String.class) {
+            return Kind.STRING;
+        }
+        if (type == LocalDateTime.class) {
+            return Kind.LOCAL_DATE_TIME;
+        }
+        return null;
+    }
+
+    private static void write(ByteArrayOutputStream out, Kind kind, Object value) {
+        switch (kind) {
+            case LONG:
+                writeVarLong(out, (Long) value);
+                break;
+            case INT:
+                writeVarLong(out, (Integer) value);
+                break;
+            case DOUBLE:
+                long bits = Double.doubleToLongBits((Double) value);
+                writeInt(out, (int) (bits >>> 32));
+                writeInt(out, (int) bits);
+                break;
+            case BOOLEAN:
+                out.write((Boolean) value ? 1 : 0);
+                break;
+            case STRING:
+                byte[] utf8 = ((String) value).getBytes(StandardCharsets.UTF_8);
+                writeVarLong(out, utf8.length);
+                out.write(utf8, 0, utf8.length);
+                break;
+            case LOCAL_DATE_TIME:
+                LocalDateTime time = (LocalDateTime) value;
+                writeVarLong(out, time.toEpochSecond(ZoneOffset.UTC));
+                writeVarLong(out, time.getNano());
+                break;
+            default:
+                throw new IllegalArgumentException(kind.name());
+        }
+    }
+
+    private static Object read(ByteBuffer in, Kind kind) {
+        switch (kind) {
+            case LONG:
+                return readVarLong(in);
+            case INT:
+                return (int) readVarLong(in);
+            case DOUBLE:
+                return Double.longBitsToDouble(in.getLong());
+            case BOOLEAN:
+                return in.get() != 0;
+            case STRING:
+                byte[] utf8 = new byte[(int) readVarLong(in)];
+                in.get(utf8);
+                return new String(utf8, StandardCharsets.UTF_8);
+            case LOCAL_DATE_TIME:
+                long seconds = readVarLong(in);
+                return LocalDateTime.ofEpochSecond(seconds, (int) readVarLong(in), ZoneOffset.UTC);
+            default:
+                throw new IllegalArgumentException(kind.name());
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int v) {
+        out.write(v >>> 24);
+        out.write(v >>> 16);
+        out.write(v >>> 8);
+        out.write(v);
+    }
+
+    /**
+     * zigzag varint, small values of either sign take one byte
+     */
+    private static void writeVarLong(ByteArrayOutputStream out, long v) {
+        v = (v << 1) ^ (v >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static class Schema {
+        private Field[] fields;
+        private Kind[] kinds;
+        private int hash;
+    }
+}
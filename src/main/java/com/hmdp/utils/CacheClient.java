@@ -1,17 +1,41 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
 
 import static com.hmdp.utils.RedisConstants.*;
@@ -22,20 +46,175 @@ public class CacheClient {
 
     StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * in-process L1 in front of redis for queryWithPenetration, holds deserialized objects
+     * (shared instances, callers must not modify them)
+     */
+    @Value("${hmdp.cache.l1.enabled:false}")
+    private boolean l1Enabled;
+
+    /**
+     * defaults of every key prefix, overridden per prefix by hmdp.cache.l1.{prefix}.ttl-ms / max-size
+     * where {prefix} is the key prefix with ':' replaced by '-', e.g. cache-shop
+     */
+    @Value("${hmdp.cache.l1.ttl-ms:1000}")
+    private long l1TtlMs;
+
+    @Value("${hmdp.cache.l1.max-size:10000}")
+    private int l1MaxSize;
+
+    @Resource
+    private Environment environment;
+
+    @Resource
+    private CacheCodecs cacheCodecs;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * key prefix -> L1 of that prefix
+     */
+    private final Map<String, Cache<String, Object>> l1Caches = new ConcurrentHashMap<>();
+
+    /**
+     * cached "not in mysql" in L1
+     */
+    private static final Object NULL_VALUE = new Object();
+
+    /**
+     * max time a concurrent miss waits for the in-flight load of the same key before querying mysql itself
+     */
+    @Value("${hmdp.cache.single-flight.wait-ms:3000}")
+    private long singleFlightWaitMs;
+
+    /**
+     * redis key -> in-flight mysql load and redis write-back, shared by concurrent misses of that key
+     */
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * key prefix -> bloom filter of the ids that exist in mysql
+     */
+    private final Map<String, RedisBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
+    /**
+     * ttls are spread by +-ttlJitter of themselves, so keys warmed together don't expire together
+     */
+    @Value("${hmdp.cache.ttl-jitter:0.1}")
+    private double ttlJitter;
+
+    /**
+     * XFetch: a hit refreshes the key in the background when now - rebuildCost * beta * ln(rand) >= expireAt,
+     * larger beta refreshes earlier, 0 disables
+     */
+    @Value("${hmdp.cache.refresh-ahead.beta:1.0}")
+    private double refreshAheadBeta;
+
     public CacheClient(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @PostConstruct
+    public void init() {
+        // SUBSCRIBE cache:invalidate, every node drops the key from its L1
+        redisMessageListenerContainer.addMessageListener((message, pattern) ->
+                evictL1(new String(message.getBody(), StandardCharsets.UTF_8)), new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * delete the redis key and broadcast the invalidation to the L1 of every node
+     * @param key redis key
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        evictL1(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * queryWithPenetration of keyPrefix returns null without touching redis or mysql for ids not in the filter
+     */
+    public void registerBloomFilter(String keyPrefix, RedisBloomFilter bloomFilter) {
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    private void evictL1(String key) {
+        l1Caches.forEach((prefix, cache) -> {
+            if (key.startsWith(prefix)) {
+                cache.remove(key);
+            }
+        });
+    }
+
+    private Cache<String, Object> l1(String keyPrefix) {
+        return l1Caches.computeIfAbsent(keyPrefix, prefix -> {
+            String name = StrUtil.removeSuffix(prefix, ":").replace(':', '-');
+            long ttl = environment.getProperty("hmdp.cache.l1." + name + ".ttl-ms", Long.class, l1TtlMs);
+            int maxSize = environment.getProperty("hmdp.cache.l1." + name + ".max-size", Integer.class, l1MaxSize);
+            return CacheUtil.newLRUCache(maxSize, ttl);
+        });
+    }
+
     public void set(String key, Object value, Long expire, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), expire, unit);
+        set(key, value, unit.toMillis(expire), 0L);
+    }
+
+    /**
+     * SET key value PX jittered ttl, the expire time and rebuild cost go into the value header for refresh-ahead
+     */
+    private void set(String key, Object value, long ttlMillis, long rebuildCostMicros) {
+        long ttl = jitter(ttlMillis);
+        byte[] bytes = cacheCodecs.encodeWithExpireAt(value, System.currentTimeMillis() + ttl, rebuildCostMicros);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.set(rawKey(key), bytes,
+                Expiration.milliseconds(ttl), RedisStringCommands.SetOption.upsert()));
+    }
+
+    private long jitter(long ttlMillis) {
+        if (ttlJitter <= 0) {
+            return ttlMillis;
+        }
+        double factor = 1 + ttlJitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max(1L, (long) (ttlMillis * factor));
+    }
+
+    /**
+     * XFetch, the closer to expiry and the more expensive the rebuild, the likelier an early refresh
+     */
+    private boolean shouldRefreshEarly(byte[] bytes) {
+        if (refreshAheadBeta <= 0 || !CacheCodecs.hasExpireAt(bytes)) {
+            return false;
+        }
+        return shouldRefreshEarly(System.currentTimeMillis(), CacheCodecs.expireAt(bytes), CacheCodecs.rebuildCostMicros(bytes),
+                refreshAheadBeta, ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * now - rebuildCost * beta * ln(1 - random) >= expireAt
+     * @param random uniform in [0, 1)
+     */
+    static boolean shouldRefreshEarly(long now, long expireAt, long rebuildCostMicros, double beta, double random) {
+        if (rebuildCostMicros <= 0) {
+            return false;
+        }
+        // 1 - random is in (0, 1], so the log is finite and <= 0
+        double gap = -rebuildCostMicros / 1000.0 * beta * Math.log(1 - random);
+        return now + gap >= expireAt;
     }
 
     public void setWithLogicalExpire(String key, Object value, Long expire, TimeUnit unit) {
-        RedisData redisData = new RedisData();
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(expire)));
-        redisData.setData(value);
+        // the expire time goes into the value header
+        byte[] bytes = cacheCodecs.encodeWithLogicalExpire(value, System.currentTimeMillis() + unit.toMillis(expire));
         // write to redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.set(rawKey(key), bytes));
+    }
+
+    private byte[] get(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey(key)));
+    }
+
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
     }
 
     public <ID, R> R queryWithPenetration(String keyPrefix, ID id,
@@ -43,36 +222,218 @@ public class CacheClient {
                                           Function<ID, R> dbFallBack,
                                           Long expire, TimeUnit unit
     ) {
-        // 1. query from redis
         String redisKey = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(redisKey);
+        // 0. query from L1, no redis round trip and no json parsing
+        Cache<String, Object> l1 = l1Enabled ? l1(keyPrefix) : null;
+        if (l1 != null) {
+            Object cached = l1.get(redisKey, false);
+            if (cached != null) {
+                return cached == NULL_VALUE ? null : resultClass.cast(cached);
+            }
+        }
 
-        // 1.1 redis exist, return
-        if (StrUtil.isNotBlank(json)) {
-            return JSONUtil.toBean(json, resultClass);
+        // 0.1 not in the bloom filter, the id doesn't exist in mysql
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (bloomFilter != null && !bloomFilter.mightContain(id)) {
+            return null;
         }
 
-        // json can be found and it is blank
-        if (json != null) {
+        // 1. query from redis
+        byte[] bytes = get(redisKey);
+
+        // 1.1 redis exist, return
+        if (bytes != null && bytes.length > 0) {
+            try {
+                R r = cacheCodecs.decode(bytes, resultClass);
+                putL1(l1, redisKey, r);
+                // 1.1.1 close to expiry, refresh in the background while this and later readers still hit
+                if (shouldRefreshEarly(bytes)) {
+                    refreshAsync(redisKey, id, dbFallBack, expire, unit, l1);
+                }
+                return r;
+            } catch (RuntimeException e) {
+                // written by an older schema, load it again
+                log.warn("undecodable cache value {}, reloading", redisKey, e);
+            }
+        } else if (bytes != null) {
+            // the empty value caches "not in mysql"
+            putL1(l1, redisKey, null);
             return null;
         }
 
-        // 1.2 redis doesn't exist, get from mysql
+        // 1.2 redis doesn't exist, get from mysql, one load per key in this jvm
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> loading = inFlight.putIfAbsent(redisKey, future);
+        if (loading != null) {
+            // 1.3 another request is loading the key, wait for its result
+            return awaitLoad(loading, redisKey, id, resultClass, dbFallBack);
+        }
+        try {
+            R r = loadAndCache(redisKey, id, dbFallBack, expire, unit, l1);
+            future.complete(r == null ? NULL_VALUE : r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(redisKey, future);
+        }
+    }
+
+    /**
+     * reload the key on CACHE_REBUILD_EXECUTOR unless a load of it is already in flight in this jvm
+     */
+    private <ID, R> void refreshAsync(String redisKey, ID id, Function<ID, R> dbFallBack,
+                                      Long expire, TimeUnit unit, Cache<String, Object> l1) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(redisKey, future) != null) {
+            return;
+        }
+        CACHE_REBUILD_EXECUTOR.execute(() -> {
+            try {
+                R r = loadAndCache(redisKey, id, dbFallBack, expire, unit, l1);
+                future.complete(r == null ? NULL_VALUE : r);
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+                log.error("refresh ahead of {} error", redisKey, e);
+            } finally {
+                inFlight.remove(redisKey, future);
+            }
+        });
+    }
+
+    private <ID, R> R loadAndCache(String redisKey, ID id, Function<ID, R> dbFallBack,
+                                   Long expire, TimeUnit unit, Cache<String, Object> l1) {
+        long begin = System.nanoTime();
         R r = dbFallBack.apply(id);
+        long rebuildCostMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin);
 
         // 2.1 mysql doesn't exist
         if (r == null) {
             // to avoid cache penetration
             stringRedisTemplate.opsForValue().set(redisKey, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            putL1(l1, redisKey, null);
             return null;
         }
 
         // 2.2 mysql exist shop info, cache it to redis
-        this.set(redisKey, JSONUtil.toJsonStr(r), expire, unit);
+        this.set(redisKey, r, unit.toMillis(expire), rebuildCostMicros);
+        putL1(l1, redisKey, r);
 
         return r;
     }
 
+    /**
+     * wait at most singleFlightWaitMs for the in-flight load, then fall back to mysql without writing redis
+     */
+    private <ID, R> R awaitLoad(CompletableFuture<Object> loading, String redisKey, ID id,
+                                Class<R> resultClass, Function<ID, R> dbFallBack) {
+        try {
+            Object value = loading.get(singleFlightWaitMs, TimeUnit.MILLISECONDS);
+            return value == NULL_VALUE ? null : resultClass.cast(value);
+        } catch (TimeoutException e) {
+            log.warn("load of {} took over {} ms, querying mysql directly", redisKey, singleFlightWaitMs);
+            return dbFallBack.apply(id);
+        } catch (ExecutionException e) {
+            // the loader failed, every waiter sees its error instead of retrying mysql
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted waiting for " + redisKey, e);
+        }
+    }
+
+    /**
+     * cached entities of ids in one MGET, the misses are loaded with a single batchDbFallBack call and written back
+     * in one pipeline. Values are decoded for this call only (no L1), callers may modify them
+     * @param batchDbFallBack ids -> entity by id, ids missing from the map don't exist and are cached as empty
+     * @return entities in the order of ids, without the nonexistent ones
+     */
+    public <ID, R> List<R> queryBatch(String keyPrefix, List<ID> ids,
+                                      Class<R> resultClass,
+                                      Function<Collection<ID>, Map<ID, R>> batchDbFallBack,
+                                      Long expire, TimeUnit unit
+    ) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        Map<ID, R> found = new HashMap<>(ids.size() * 2);
+        List<ID> misses = new ArrayList<>();
+
+        // 1. MGET keyPrefix + id ...
+        byte[][] keys = new byte[ids.size()][];
+        for (int i = 0; i < ids.size(); i++) {
+            keys[i] = rawKey(keyPrefix + ids.get(i));
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(keys));
+        for (int i = 0; i < ids.size(); i++) {
+            ID id = ids.get(i);
+            byte[] bytes = values == null ? null : values.get(i);
+            if (bytes != null && bytes.length == 0) {
+                // cached "not in mysql"
+                continue;
+            }
+            if (bytes != null) {
+                try {
+                    found.put(id, cacheCodecs.decode(bytes, resultClass));
+                    continue;
+                } catch (RuntimeException e) {
+                    log.warn("undecodable cache value {}{}, reloading", keyPrefix, id, e);
+                }
+            }
+            if (bloomFilter == null || bloomFilter.mightContain(id)) {
+                misses.add(id);
+            }
+        }
+
+        // 2. load the misses from mysql in one query, write them back in one pipeline
+        if (!misses.isEmpty()) {
+            long begin = System.nanoTime();
+            Map<ID, R> loaded = batchDbFallBack.apply(misses);
+            long rebuildCostMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin);
+            Map<byte[], byte[]> writes = new LinkedHashMap<>(misses.size() * 2);
+            Map<byte[], Expiration> expirations = new HashMap<>(misses.size() * 2);
+            Expiration nullExpiration = Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES);
+            for (ID id : misses) {
+                R r = loaded.get(id);
+                byte[] key = rawKey(keyPrefix + id);
+                if (r == null) {
+                    writes.put(key, new byte[0]);
+                    expirations.put(key, nullExpiration);
+                    continue;
+                }
+                // every key gets its own jittered ttl
+                long ttl = jitter(unit.toMillis(expire));
+                writes.put(key, cacheCodecs.encodeWithExpireAt(r, System.currentTimeMillis() + ttl, rebuildCostMicros));
+                expirations.put(key, Expiration.milliseconds(ttl));
+                found.put(id, r);
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                writes.forEach((key, value) ->
+                        connection.set(key, value, expirations.get(key), RedisStringCommands.SetOption.upsert()));
+                return null;
+            });
+        }
+
+        // 3. in the requested order
+        List<R> result = new ArrayList<>(found.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    private static void putL1(Cache<String, Object> l1, String key, Object value) {
+        if (l1 != null) {
+            l1.put(key, value == null ? NULL_VALUE : value);
+        }
+    }
+
     public static final ExecutorService CACHE_REBUILD_EXECUTOR =  Executors.newFixedThreadPool(10);
 
     public <ID, R> R queryBreakdownWithLogicExpire(String keyPrefix, ID id,
@@ -83,22 +444,30 @@ public class CacheClient {
                                                    ) {
         // 1. query from redis
         String redisKey = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(redisKey);
+        byte[] bytes = get(redisKey);
 
         // 2. 判断是否命中
         // 热点key由后台管理系统添加，一般不会不命中
-        if (StrUtil.isBlank(json)) {
+        if (bytes == null || bytes.length == 0) {
             // 3. 未命中，返回空
             return null;
         }
 
-        // 4. 命中，解析json，获得shop对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), returnClass);
+        // 4. 命中，过期时间在固定头部中，判断过期不用解析数据
+        boolean expired;
+        R r;
+        if (CacheCodecs.isFramed(bytes)) {
+            expired = CacheCodecs.expireAt(bytes) <= System.currentTimeMillis();
+            r = cacheCodecs.decode(bytes, returnClass);
+        } else {
+            // RedisData json written before the header existed
+            RedisData redisData = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+            expired = !redisData.getExpireTime().isAfter(LocalDateTime.now());
+            r = JSONUtil.toBean((JSONObject) redisData.getData(), returnClass);
+        }
 
         // 5. 判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
+        if (!expired) {
             // 5.1 未过期，返回
             return r;
         }
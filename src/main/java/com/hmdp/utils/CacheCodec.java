@@ -0,0 +1,25 @@
+package com.hmdp.utils;
+
+/**
+ * serializes the values CacheClient keeps in redis. Implementations are spring beans, the one named by
+ * hmdp.cache.codec.name writes, every value carries the id of the codec that wrote it so it's always
+ * read back by the same one
+ */
+public interface CacheCodec {
+
+    /**
+     * stored in the value header, unique and stable across releases
+     */
+    byte id();
+
+    String name();
+
+    /**
+     * @return false if values of type can't be encoded, CacheCodecs falls back to json for them
+     */
+    boolean supports(Class<?> type);
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, int offset, int length, Class<T> type);
+}
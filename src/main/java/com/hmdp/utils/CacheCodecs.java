@@ -0,0 +1,235 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * frames the values of CacheClient in a fixed binary header:
+ * <pre>
+ * byte magic | byte codec id | byte flags | [long expire at, epoch ms] | [int rebuild cost, µs] | [int raw length] | payload
+ * </pre>
+ * the expire time is there when flags has LOGICAL_EXPIRE or EXPIRE_AT, so an expiry check reads 8 bytes instead
+ * of the payload; the rebuild cost with EXPIRE_AT, the raw length when the payload is deflated. Values without
+ * the magic byte are the plain json written before the header existed. A null value is the NULL flag with the
+ * json codec id and an empty payload
+ */
+@Slf4j
+@Component
+public class CacheCodecs {
+
+    /**
+     * never the first byte of a json document
+     */
+    private static final byte MAGIC = (byte) 0xC5;
+    private static final byte FLAG_DEFLATE = 1;
+    private static final byte FLAG_LOGICAL_EXPIRE = 1 << 1;
+    /**
+     * expire time of the redis ttl and the time it took to load the value, for refresh-ahead
+     */
+    private static final byte FLAG_EXPIRE_AT = 1 << 2;
+    private static final byte FLAG_NULL = 1 << 3;
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * codec of new values, json | binary
+     */
+    @Value("${hmdp.cache.codec.name:json}")
+    private String codecName;
+
+    /**
+     * payloads longer than this are deflated, 0 disables compression
+     */
+    @Value("${hmdp.cache.codec.compress-threshold:1024}")
+    private int compressThreshold;
+
+    @Resource
+    private List<CacheCodec> codecList;
+
+    @Resource
+    private JsonCacheCodec jsonCacheCodec;
+
+    private final CacheCodec[] codecs = new CacheCodec[256];
+    private CacheCodec writer;
+
+    @PostConstruct
+    public void init() {
+        for (CacheCodec codec : codecList) {
+            if (codecs[codec.id() & 0xFF] != null) {
+                throw new IllegalStateException("duplicate cache codec id " + codec.id());
+            }
+            codecs[codec.id() & 0xFF] = codec;
+            if (codec.name().equals(codecName)) {
+                writer = codec;
+            }
+        }
+        if (writer == null) {
+            throw new IllegalStateException("unknown cache codec " + codecName);
+        }
+    }
+
+    public byte[] encode(Object value) {
+        return encode(value, (byte) 0, 0L, 0);
+    }
+
+    /**
+     * @param expireAt logical expire time, epoch ms
+     */
+    public byte[] encodeWithLogicalExpire(Object value, long expireAt) {
+        return encode(value, FLAG_LOGICAL_EXPIRE, expireAt, 0);
+    }
+
+    /**
+     * @param expireAt when the redis ttl runs out, epoch ms
+     * @param rebuildCostMicros time it took to load value, µs so that sub-millisecond loads aren't recorded as 0
+     */
+    public byte[] encodeWithExpireAt(Object value, long expireAt, long rebuildCostMicros) {
+        return encode(value, FLAG_EXPIRE_AT, expireAt, (int) Math.min(Integer.MAX_VALUE, rebuildCostMicros));
+    }
+
+    private byte[] encode(Object value, byte flags, long expireAt, int rebuildCostMicros) {
+        CacheCodec codec;
+        byte[] payload;
+        if (value == null) {
+            codec = jsonCacheCodec;
+            payload = EMPTY;
+            flags |= FLAG_NULL;
+        } else {
+            codec = writer.supports(value.getClass()) ? writer : jsonCacheCodec;
+            payload = codec.encode(value);
+        }
+        int rawLength = payload.length;
+        boolean hasExpireAt = (flags & (FLAG_LOGICAL_EXPIRE | FLAG_EXPIRE_AT)) != 0;
+        boolean hasRebuildCost = (flags & FLAG_EXPIRE_AT) != 0;
+        if (compressThreshold > 0 && rawLength > compressThreshold) {
+            byte[] deflated = deflate(payload);
+            if (deflated.length < rawLength) {
+                payload = deflated;
+                flags |= FLAG_DEFLATE;
+            }
+        }
+        ByteBuffer out = ByteBuffer.allocate(3 + (hasExpireAt ? 8 : 0) + (hasRebuildCost ? 4 : 0)
+                + ((flags & FLAG_DEFLATE) != 0 ? 4 : 0) + payload.length);
+        out.put(MAGIC).put(codec.id()).put(flags);
+        if (hasExpireAt) {
+            out.putLong(expireAt);
+        }
+        if (hasRebuildCost) {
+            out.putInt(rebuildCostMicros);
+        }
+        if ((flags & FLAG_DEFLATE) != 0) {
+            out.putInt(rawLength);
+        }
+        out.put(payload);
+        return out.array();
+    }
+
+    /**
+     * @return false for the plain json values written before the header existed
+     */
+    public static boolean isFramed(byte[] bytes) {
+        return bytes.length >= 3 && bytes[0] == MAGIC;
+    }
+
+    /**
+     * @return whether the header has an expire time, logical or of the redis ttl
+     */
+    public static boolean hasExpireAt(byte[] bytes) {
+        return isFramed(bytes) && (bytes[2] & (FLAG_LOGICAL_EXPIRE | FLAG_EXPIRE_AT)) != 0;
+    }
+
+    /**
+     * @return the expire time from the header, epoch ms, without touching the payload
+     */
+    public static long expireAt(byte[] bytes) {
+        if (!hasExpireAt(bytes)) {
+            throw new IllegalArgumentException("value has no expire time");
+        }
+        return ByteBuffer.wrap(bytes, 3, 8).getLong();
+    }
+
+    /**
+     * @return the time it took to load the value, µs, 0 if unknown
+     */
+    public static long rebuildCostMicros(byte[] bytes) {
+        if (!isFramed(bytes) || (bytes[2] & FLAG_EXPIRE_AT) == 0) {
+            return 0L;
+        }
+        return ByteBuffer.wrap(bytes, 11, 4).getInt();
+    }
+
+    /**
+     * @return the value, null if a null value was encoded
+     */
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        if (!isFramed(bytes)) {
+            return jsonCacheCodec.decode(bytes, 0, bytes.length, type);
+        }
+        if ((bytes[2] & FLAG_NULL) != 0) {
+            return null;
+        }
+        CacheCodec codec = codecs[bytes[1] & 0xFF];
+        if (codec == null) {
+            throw new IllegalStateException("unknown cache codec id " + bytes[1]);
+        }
+        byte flags = bytes[2];
+        int offset = 3 + ((flags & (FLAG_LOGICAL_EXPIRE | FLAG_EXPIRE_AT)) != 0 ? 8 : 0) + ((flags & FLAG_EXPIRE_AT) != 0 ? 4 : 0);
+        if ((flags & FLAG_DEFLATE) == 0) {
+            return codec.decode(bytes, offset, bytes.length - offset, type);
+        }
+        int rawLength = ByteBuffer.wrap(bytes, offset, 4).getInt();
+        offset += 4;
+        byte[] raw = inflate(bytes, offset, bytes.length - offset, rawLength);
+        return codec.decode(raw, 0, raw.length, type);
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes, int offset, int length, int rawLength) {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(bytes, offset, length);
+            byte[] raw = new byte[rawLength];
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                int read = inflater.inflate(raw, n, rawLength - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != rawLength) {
+                throw new IllegalStateException("truncated cache value, " + n + " of " + rawLength + " bytes");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * async queue between the seckill request and the order persisted in mysql
+ */
+public interface IOrderQueue {
+
+    /**
+     *
+     * @return whether seckill.lua appends the order to the queue itself (XADD),
+     * otherwise the caller publishes it after the script succeeded
+     */
+    boolean publishedByScript();
+
+    /**
+     *
+     * @return stream.orders partitions seckill.lua routes to, 0 for the single stream
+     */
+    int partitions();
+
+    /**
+     * append an order, only used when the script doesn't publish it
+     * @param voucherOrder order that passed the seckill checks
+     */
+    void publish(VoucherOrder voucherOrder);
+
+    /**
+     * start consuming, orders are acknowledged only after the handler returned normally,
+     * together with their order:status:{id}
+     * @param handler persists a batch of orders
+     */
+    void start(OrderHandler handler);
+
+    /**
+     * stop consuming: no new orders are read, the ones being handled are finished and acknowledged
+     * @param timeoutMillis max time to wait for in-flight orders, unfinished ones stay unacknowledged
+     */
+    void stop(long timeoutMillis);
+
+    /**
+     * stop reading new orders until resume(), the ones being handled are finished and acknowledged
+     */
+    void pause();
+
+    void resume();
+
+    boolean isPaused();
+
+    /**
+     * move dead lettered orders back to the queue, queues without a dead letter stream replay nothing
+     * @param count max orders to replay
+     * @return orders replayed
+     */
+    default int replayDeadLetters(int count) {
+        return 0;
+    }
+
+    interface OrderHandler {
+        /**
+         * @param voucherOrders orders to persist
+         * @return order id -> reason for orders that were rejected, empty if all were persisted
+         */
+        Map<Long, String> handle(List<VoucherOrder> voucherOrders);
+    }
+}
@@ -0,0 +1,520 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * order queue backed by an append-only journal of memory-mapped segment files on local disk.
+ * the seckill request appends the order after seckill.lua succeeded, one consumer thread replays
+ * the journal from the offset stored in the checkpoint file. publish returns only after the record was
+ * fsynced: appends that arrive while the flusher forces the segment share its next fsync (group commit).
+ * The consumer only reads fsynced records; a record whose fsync timed out is turned into a tombstone before
+ * the flusher can cover it, so an order the caller compensated is never persisted.
+ * <p>
+ * record (32 bytes): magic int | order id long | user id long | voucher id long | crc32 int,
+ * magic is TOMBSTONE instead of MAGIC for a record whose publish failed
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.order.queue", havingValue = "journal")
+public class JournalOrderQueue implements IOrderQueue {
+
+    private static final int MAGIC = 0x4F524452;
+    private static final int TOMBSTONE = 0x4F524458;
+    private static final int RECORD_SIZE = 32;
+    private static final int PAYLOAD_SIZE = 24;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.order.journal.dir:./data/order-journal}")
+    private String journalDir;
+
+    /**
+     * size of one segment file, rounded down to whole records
+     */
+    @Value("${hmdp.seckill.order.journal.segment-size-mb:64}")
+    private int segmentSizeMb;
+
+    /**
+     * the checkpoint is fsynced at this interval
+     */
+    @Value("${hmdp.seckill.order.journal.flush-interval-ms:10}")
+    private long flushIntervalMs;
+
+    /**
+     * max time publish waits for the fsync of its record, after that the order fails and is compensated
+     */
+    @Value("${hmdp.seckill.order.journal.fsync-timeout-ms:1000}")
+    private long fsyncTimeoutMs;
+
+    @Value("${hmdp.seckill.order.batch-size:1}")
+    private int orderBatchSize;
+
+    @Value("${hmdp.seckill.order.batch-linger-ms:50}")
+    private long orderBatchLingerMs;
+
+    private ExecutorService consumerExecutor;
+
+    private final ScheduledExecutorService flushScheduler = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * forces the journal whenever records were appended, publishers wait on flushMonitor
+     */
+    private final ExecutorService journalFlusher = Executors.newSingleThreadExecutor();
+
+    private final Object flushMonitor = new Object();
+
+    private volatile boolean closed;
+
+    /**
+     * segment base offset -> segment, offsets are contiguous over all segments
+     */
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    // writer state, guarded by this
+    private Segment writeSegment;
+    private int writePos;
+    private final byte[] writeScratch = new byte[PAYLOAD_SIZE];
+    private final CRC32 writeCrc = new CRC32();
+
+    /**
+     * global offset right after the last appended record
+     */
+    private volatile long writeOffset;
+
+    /**
+     * records below this offset are on disk, the consumer reads up to here. Only advanced under flushMonitor
+     */
+    private volatile long flushedOffset;
+
+    private FileChannel checkpointChannel;
+
+    private volatile long readOffset;
+
+    private volatile boolean running = true;
+
+    private volatile boolean paused;
+
+    @PostConstruct
+    public void init() throws IOException {
+        File dir = new File(journalDir);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("can't create order journal dir " + dir.getAbsolutePath());
+        }
+
+        // 1. map existing segments
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+        if (files != null) {
+            for (File file : files) {
+                long base = Long.parseLong(file.getName().substring(0, file.getName().length() - 4));
+                segments.put(base, Segment.open(file, base, (int) file.length()));
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, Segment.open(segmentFile(0), 0, segmentCapacity()));
+        }
+
+        // 2. find the end of the last segment: first slot without a valid record
+        writeSegment = segments.lastEntry().getValue();
+        writePos = 0;
+        byte[] scratch = new byte[PAYLOAD_SIZE];
+        CRC32 crc = new CRC32();
+        while (writePos + RECORD_SIZE <= writeSegment.capacity && readRecord(writeSegment, writePos, scratch, crc) != null) {
+            writePos += RECORD_SIZE;
+        }
+        writeOffset = writeSegment.base + writePos;
+        flushedOffset = writeOffset;
+
+        // 3. consumer checkpoint
+        checkpointChannel = new RandomAccessFile(new File(dir, "checkpoint"), "rw").getChannel();
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        readOffset = checkpointChannel.read(buffer, 0) == 8 ? buffer.getLong(0) : 0;
+        readOffset = Math.max(readOffset, segments.firstKey());
+        readOffset = Math.min(readOffset, writeOffset);
+        log.info("order journal opened, {} segments, read offset {}, write offset {}", segments.size(), readOffset, writeOffset);
+
+        flushScheduler.scheduleWithFixedDelay(this::flushCheckpoint, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        journalFlusher.submit(this::flushJournal);
+    }
+
+    @Override
+    public boolean publishedByScript() {
+        return false;
+    }
+
+    @Override
+    public int partitions() {
+        return 0;
+    }
+
+    /**
+     * append the order and wait until it's on disk
+     * @throws IllegalStateException if the record couldn't be written or fsynced in time, the record is then
+     * a tombstone the consumer skips and the caller has to compensate
+     */
+    @Override
+    public void publish(VoucherOrder voucherOrder) {
+        long end = append(voucherOrder);
+        // 4. 等待包含该记录的fsync完成后才返回成功
+        long deadline = System.currentTimeMillis() + fsyncTimeoutMs;
+        synchronized (flushMonitor) {
+            flushMonitor.notifyAll();
+            while (flushedOffset < end) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || closed) {
+                    // 持有flushMonitor，flushedOffset不会越过该记录，消费者还读不到它
+                    tombstone(end);
+                    throw new IllegalStateException("order journal fsync of offset " + end + " timed out");
+                }
+                try {
+                    flushMonitor.wait(remaining);
+                } catch (InterruptedException e) {
+                    tombstone(end);
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted waiting for order journal fsync", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * turn the record ending at end into a tombstone, must hold flushMonitor while flushedOffset < end.
+     * The tombstone reaches disk with the next fsync of its segment, a crash before that replays the record
+     * and VoucherOrderServiceImpl drops it by its order:cancelled:{id} marker
+     */
+    private void tombstone(long end) {
+        long offset = end - RECORD_SIZE;
+        Segment segment = segments.floorEntry(offset).getValue();
+        segment.buffer.putInt((int) (offset - segment.base), TOMBSTONE);
+    }
+
+    /**
+     * @return global offset right after the appended record
+     */
+    private synchronized long append(VoucherOrder voucherOrder) {
+        // 1. 当前段写满，滚动到下一个段
+        if (writePos + RECORD_SIZE > writeSegment.capacity) {
+            roll();
+        }
+
+        // 2. 写入记录
+        ByteBuffer payload = ByteBuffer.wrap(writeScratch);
+        payload.putLong(voucherOrder.getId())
+                .putLong(voucherOrder.getUserId())
+                .putLong(voucherOrder.getVoucherId());
+        writeCrc.reset();
+        writeCrc.update(writeScratch, 0, PAYLOAD_SIZE);
+
+        MappedByteBuffer buffer = writeSegment.buffer;
+        for (int i = 0; i < PAYLOAD_SIZE; i++) {
+            buffer.put(writePos + 4 + i, writeScratch[i]);
+        }
+        buffer.putInt(writePos + 4 + PAYLOAD_SIZE, (int) writeCrc.getValue());
+        buffer.putInt(writePos, MAGIC);
+        writePos += RECORD_SIZE;
+
+        // 3. 对消费者可见
+        writeOffset = writeSegment.base + writePos;
+        return writeOffset;
+    }
+
+    @Override
+    public synchronized void start(OrderHandler handler) {
+        if (consumerExecutor != null) {
+            return;
+        }
+        running = true;
+        consumerExecutor = Executors.newSingleThreadExecutor();
+        consumerExecutor.submit(() -> consume(handler));
+    }
+
+    @Override
+    public synchronized void stop(long timeoutMillis) {
+        if (consumerExecutor == null) {
+            return;
+        }
+        // 当前批次落库并写入checkpoint后退出
+        running = false;
+        consumerExecutor.shutdown();
+        try {
+            if (!consumerExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                log.warn("order journal consumer not drained in {} ms, the batch is replayed from the checkpoint", timeoutMillis);
+                consumerExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            consumerExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        consumerExecutor = null;
+        log.info("order journal consumer stopped at offset {}", readOffset);
+    }
+
+    @Override
+    public void pause() {
+        paused = true;
+    }
+
+    @Override
+    public void resume() {
+        paused = false;
+    }
+
+    @Override
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * last group commit of the journal and the checkpoint, runs after the consumer was stopped
+     */
+    @PreDestroy
+    public void close() {
+        closed = true;
+        synchronized (flushMonitor) {
+            flushMonitor.notifyAll();
+        }
+        flushScheduler.shutdown();
+        journalFlusher.shutdown();
+        try {
+            journalFlusher.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        forceJournal();
+        flushCheckpoint();
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        try {
+            checkpointChannel.close();
+        } catch (IOException e) {
+            log.warn("close order journal checkpoint failed", e);
+        }
+    }
+
+    private void consume(OrderHandler handler) {
+        byte[] scratch = new byte[PAYLOAD_SIZE];
+        CRC32 crc = new CRC32();
+        int batchSize = Math.max(1, orderBatchSize);
+        while (running) {
+            try {
+                // 只读已经fsync的记录，fsync超时的记录在此之前已变为墓碑
+                long end = flushedOffset;
+                if (paused || readOffset >= end) {
+                    Thread.sleep(Math.max(1, orderBatchLingerMs));
+                    continue;
+                }
+
+                // 1. read up to batchSize records from the checkpoint on
+                List<VoucherOrder> voucherOrders = new ArrayList<>(batchSize);
+                long offset = readOffset;
+                while (offset < end && voucherOrders.size() < batchSize) {
+                    Segment segment = segments.floorEntry(offset).getValue();
+                    int pos = (int) (offset - segment.base);
+                    if (pos + RECORD_SIZE > segment.capacity) {
+                        offset = segment.base + segment.capacity;
+                        continue;
+                    }
+                    VoucherOrder voucherOrder = readRecord(segment, pos, scratch, crc);
+                    if (voucherOrder == null) {
+                        log.error("order journal record at offset {} is corrupted, skipped", offset);
+                    } else if (segment.buffer.getInt(pos) == TOMBSTONE) {
+                        log.debug("order {} was not published, skipped", voucherOrder.getId());
+                    } else {
+                        voucherOrders.add(voucherOrder);
+                    }
+                    offset += RECORD_SIZE;
+                }
+
+                // 2. persist, a failed batch is retried from the same offset
+                if (!voucherOrders.isEmpty()) {
+                    Map<Long, String> failures = handler.handle(voucherOrders);
+                    stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                        OrderStatusUtils.markHandled((StringRedisConnection) connection, voucherOrders, failures);
+                        return null;
+                    });
+                }
+
+                // 3. move the checkpoint and drop fully consumed segments
+                readOffset = offset;
+                ByteBuffer buffer = ByteBuffer.allocate(8);
+                buffer.putLong(0, offset);
+                checkpointChannel.write(buffer, 0);
+                deleteConsumedSegments();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("JournalOrderQueue consume error", e);
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized void roll() {
+        Segment old = writeSegment;
+        old.buffer.force();
+        long base = old.base + old.capacity;
+        try {
+            writeSegment = Segment.open(segmentFile(base), base, segmentCapacity());
+        } catch (IOException e) {
+            throw new IllegalStateException("roll order journal segment failed", e);
+        }
+        segments.put(base, writeSegment);
+        writePos = 0;
+        log.info("order journal rolled to segment {}", base);
+    }
+
+    /**
+     * group commit: wait for appended records, force them with one fsync and wake their publishers
+     */
+    private void flushJournal() {
+        while (!closed) {
+            try {
+                synchronized (flushMonitor) {
+                    while (writeOffset <= flushedOffset && !closed) {
+                        flushMonitor.wait(flushIntervalMs);
+                    }
+                }
+                forceJournal();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("flush order journal error", e);
+            }
+        }
+    }
+
+    /**
+     * fsync the write segment up to writeOffset, segments before it were forced when rolled
+     */
+    private void forceJournal() {
+        long offset = writeOffset;
+        if (offset <= flushedOffset) {
+            return;
+        }
+        segments.floorEntry(Math.max(0, offset - 1)).getValue().buffer.force();
+        synchronized (flushMonitor) {
+            flushedOffset = offset;
+            flushMonitor.notifyAll();
+        }
+    }
+
+    private void flushCheckpoint() {
+        try {
+            checkpointChannel.force(false);
+        } catch (Exception e) {
+            log.error("flush order journal checkpoint error", e);
+        }
+    }
+
+    private void deleteConsumedSegments() {
+        for (Map.Entry<Long, Segment> entry : segments.entrySet()) {
+            Segment segment = entry.getValue();
+            if (segment == writeSegment || segment.base + segment.capacity > readOffset) {
+                return;
+            }
+            segments.remove(entry.getKey());
+            segment.close();
+            if (!segment.file.delete()) {
+                log.warn("delete consumed order journal segment {} failed", segment.file);
+            }
+        }
+    }
+
+    /**
+     * @return the order of a valid record or tombstone, null for an empty slot or a corrupted record
+     */
+    private VoucherOrder readRecord(Segment segment, int pos, byte[] scratch, CRC32 crc) {
+        MappedByteBuffer buffer = segment.buffer;
+        int magic = buffer.getInt(pos);
+        if (magic != MAGIC && magic != TOMBSTONE) {
+            return null;
+        }
+        for (int i = 0; i < PAYLOAD_SIZE; i++) {
+            scratch[i] = buffer.get(pos + 4 + i);
+        }
+        crc.reset();
+        crc.update(scratch, 0, PAYLOAD_SIZE);
+        if ((int) crc.getValue() != buffer.getInt(pos + 4 + PAYLOAD_SIZE)) {
+            return null;
+        }
+        ByteBuffer payload = ByteBuffer.wrap(scratch);
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(payload.getLong());
+        voucherOrder.setUserId(payload.getLong());
+        voucherOrder.setVoucherId(payload.getLong());
+        return voucherOrder;
+    }
+
+    private int segmentCapacity() {
+        long bytes = (long) segmentSizeMb * 1024 * 1024;
+        return (int) Math.min(bytes - bytes % RECORD_SIZE, Integer.MAX_VALUE - Integer.MAX_VALUE % RECORD_SIZE);
+    }
+
+    private File segmentFile(long base) {
+        return new File(journalDir, String.format("%020d.log", base));
+    }
+
+    private static class Segment {
+        private final File file;
+        private final long base;
+        private final int capacity;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        private Segment(File file, long base, int capacity, FileChannel channel, MappedByteBuffer buffer) {
+            this.file = file;
+            this.base = base;
+            this.capacity = capacity;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        private static Segment open(File file, long base, int capacity) throws IOException {
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            return new Segment(file, base, capacity, channel, buffer);
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("close order journal segment {} failed", file, e);
+            }
+        }
+    }
+}
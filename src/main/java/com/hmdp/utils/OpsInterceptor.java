@@ -0,0 +1,35 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * guards the /ops/** endpoints: the request has to carry the ops token (hmdp.ops.token) in the X-Ops-Token header,
+ * a logged in user is not enough. Without a configured token every ops request is rejected
+ */
+public class OpsInterceptor implements HandlerInterceptor {
+
+    public static final String OPS_TOKEN_HEADER = "X-Ops-Token";
+
+    private final byte[] opsToken;
+
+    public OpsInterceptor(String opsToken) {
+        this.opsToken = StrUtil.isBlank(opsToken) ? null : opsToken.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        String token = request.getHeader(OPS_TOKEN_HEADER);
+        if (opsToken == null || token == null
+                || !MessageDigest.isEqual(opsToken, token.getBytes(StandardCharsets.UTF_8))) {
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
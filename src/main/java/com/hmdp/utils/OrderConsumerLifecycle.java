@@ -0,0 +1,56 @@
+package com.hmdp.utils;
+
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * starts the order queue consumers and the order timeout queue once the context is refreshed (every bean, including
+ * the transactional proxy of the order service, is ready) and drains them before the redis and datasource beans are destroyed
+ */
+@Slf4j
+@Component
+public class OrderConsumerLifecycle implements SmartLifecycle {
+
+    @Resource
+    private IOrderQueue orderQueue;
+
+    /**
+     * the proxy, so every batch runs through its @Transactional methods
+     */
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    /**
+     * max time to wait for in-flight orders on shutdown
+     */
+    @Value("${hmdp.seckill.order.shutdown-timeout-ms:10000}")
+    private long shutdownTimeoutMs;
+
+    private volatile boolean running;
+
+    @Override
+    public void start() {
+        orderQueue.start(voucherOrderService::handleVoucherOrders);
+        voucherOrderService.startOrderTimeouts();
+        running = true;
+        log.info("order consumers started on {}", orderQueue.getClass().getSimpleName());
+    }
+
+    @Override
+    public void stop() {
+        // 先停超时取消，避免取消与仍在落库的订单交错
+        voucherOrderService.stopOrderTimeouts();
+        orderQueue.stop(shutdownTimeoutMs);
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+}
@@ -0,0 +1,52 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.VoucherOrder;
+import org.springframework.data.redis.connection.StringRedisConnection;
+
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_TTL;
+
+/**
+ * order:status:{id} hash written by seckill.lua (QUEUED) and by the order queue once the order is done
+ */
+public class OrderStatusUtils {
+
+    public static final String QUEUED = "QUEUED";
+    public static final String PERSISTED = "PERSISTED";
+    public static final String FAILED = "FAILED";
+    /**
+     * written by seckill-cancel.lua when an unpaid order timed out
+     */
+    public static final String CANCELLED = "CANCELLED";
+
+    /**
+     * mark every order PERSISTED unless the handler reported a failure reason for it,
+     * meant to be called inside the pipeline that acks the orders
+     * @param connection pipelined connection
+     * @param voucherOrders handled orders
+     * @param failures order id -> reason of orders that were not persisted
+     */
+    public static void markHandled(StringRedisConnection connection, List<VoucherOrder> voucherOrders, Map<Long, String> failures) {
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            String reason = failures.get(voucherOrder.getId());
+            if (reason == null) {
+                mark(connection, voucherOrder.getId(), PERSISTED, null);
+            } else {
+                mark(connection, voucherOrder.getId(), FAILED, reason);
+            }
+        }
+    }
+
+    public static void mark(StringRedisConnection connection, Long orderId, String status, String reason) {
+        String key = ORDER_STATUS_KEY + orderId;
+        connection.hSet(key, "status", status);
+        if (StrUtil.isNotBlank(reason)) {
+            connection.hSet(key, "reason", StrUtil.maxLength(reason, 256));
+        }
+        connection.expire(key, ORDER_STATUS_TTL);
+    }
+}
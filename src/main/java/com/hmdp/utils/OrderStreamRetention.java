@@ -0,0 +1,223 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.io.IoUtil;
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+import static com.hmdp.utils.RedisConstants.ORDER_RETENTION_LOCK_KEY;
+
+/**
+ * keeps the order streams from growing forever: entries every consumer group has acknowledged
+ * are spilled to gzip archive files and then removed with XTRIM MINID
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.order.queue", havingValue = "stream", matchIfMissing = true)
+public class OrderStreamRetention {
+
+    private static final DateTimeFormatter ARCHIVE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    /**
+     * entries per XRANGE page while archiving
+     */
+    private static final long ARCHIVE_PAGE_SIZE = 1000L;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private RedisStreamOrderQueue orderQueue;
+
+    @Value("${hmdp.seckill.order.retention.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.seckill.order.retention.interval-ms:60000}")
+    private long intervalMs;
+
+    /**
+     * archive trimmed entries before XTRIM, false just drops them
+     */
+    @Value("${hmdp.seckill.order.retention.archive:true}")
+    private boolean archive;
+
+    @Value("${hmdp.seckill.order.retention.archive-dir:./data/order-archive}")
+    private String archiveDir;
+
+    private final ScheduledExecutorService retentionScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "order-stream-retention");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        retentionScheduler.scheduleWithFixedDelay(this::trimOrderStreams, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        retentionScheduler.shutdownNow();
+    }
+
+    /**
+     * one instance at a time, otherwise every instance would archive the same range
+     */
+    public void trimOrderStreams() {
+        RLock lock = redissonClient.getLock(ORDER_RETENTION_LOCK_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            for (String streamKey : orderQueue.orderStreamKeys()) {
+                trimOrderStream(streamKey);
+            }
+        } catch (Exception e) {
+            log.error("trim order streams error", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void trimOrderStream(String streamKey) throws IOException {
+        // 1. 所有消费组都已确认的最小边界
+        RecordId minId = lowestUnackedId(streamKey);
+        if (minId == null) {
+            return;
+        }
+        // 2. 先归档 [-, minId)，归档失败则本轮不裁剪
+        if (archive) {
+            long archived = archive(streamKey, minId);
+            if (archived == 0) {
+                return;
+            }
+        }
+        // 3. XTRIM stream.orders MINID minId，删除id小于minId的消息
+        Object trimmed = stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                ((StringRedisConnection) connection).execute("XTRIM", streamKey, "MINID", minId.getValue()));
+        log.info("trimmed {} acknowledged orders of {} below {}", trimmed, streamKey, minId);
+    }
+
+    /**
+     * XINFO GROUPS + XPENDING summary: the oldest pending entry of each group, or the entry right after
+     * its last delivered id when nothing is pending. Entries below the lowest of these are acked by every group
+     * @return exclusive upper bound of the trimmable range, null if the stream has no groups
+     */
+    private RecordId lowestUnackedId(String streamKey) {
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(streamKey);
+        RecordId lowest = null;
+        for (StreamInfo.XInfoGroup group : groups.stream().collect(Collectors.toList())) {
+            RecordId bound;
+            if (group.pendingCount() != null && group.pendingCount() > 0) {
+                PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(streamKey, group.groupName());
+                if (summary == null || summary.minRecordId() == null) {
+                    return null;
+                }
+                bound = summary.minRecordId();
+            } else {
+                bound = successor(RecordId.of(group.lastDeliveredId()));
+            }
+            if (lowest == null || compare(bound, lowest) < 0) {
+                lowest = bound;
+            }
+        }
+        if (lowest == null || (lowest.getTimestamp() == 0 && lowest.getSequence() <= 1)) {
+            // 没有消费组，或者还没有消费过任何消息
+            return null;
+        }
+        return lowest;
+    }
+
+    /**
+     * XRANGE stream - minId COUNT 1000 page by page into {archiveDir}/{stream}-{time}.jsonl.gz
+     * @return number of archived entries
+     */
+    private long archive(String streamKey, RecordId minId) throws IOException {
+        File dir = FileUtil.mkdir(archiveDir);
+        File file = new File(dir, streamKey + "-" + LocalDateTime.now().format(ARCHIVE_TIME_FORMATTER) + ".jsonl.gz");
+        long archived = 0;
+        try (OutputStream out = new GZIPOutputStream(FileUtil.getOutputStream(file));
+             Writer writer = IoUtil.getWriter(out, StandardCharsets.UTF_8)) {
+            String start = "-";
+            while (true) {
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                        streamKey, Range.closed(start, minId.getValue()), RedisZSetCommands.Limit.limit().count((int) ARCHIVE_PAGE_SIZE));
+                if (records == null || records.isEmpty()) {
+                    break;
+                }
+                RecordId last = null;
+                for (MapRecord<String, Object, Object> record : records) {
+                    if (compare(record.getId(), minId) >= 0) {
+                        continue;
+                    }
+                    Map<String, Object> line = new LinkedHashMap<>(4);
+                    line.put("stream", streamKey);
+                    line.put("id", record.getId().getValue());
+                    line.put("values", record.getValue());
+                    writer.write(JSONUtil.toJsonStr(line));
+                    writer.write('\n');
+                    archived++;
+                    last = record.getId();
+                }
+                if (last == null || records.size() < ARCHIVE_PAGE_SIZE) {
+                    break;
+                }
+                start = successor(last).getValue();
+            }
+        }
+        if (archived == 0) {
+            FileUtil.del(file);
+        } else {
+            log.info("archived {} orders of {} to {}", archived, streamKey, file.getAbsolutePath());
+        }
+        return archived;
+    }
+
+    private static RecordId successor(RecordId id) {
+        return RecordId.of(id.getTimestamp(), id.getSequence() + 1);
+    }
+
+    private static int compare(RecordId a, RecordId b) {
+        int c = Long.compare(a.getTimestamp(), b.getTimestamp());
+        return c != 0 ? c : Long.compare(a.getSequence(), b.getSequence());
+    }
+}
@@ -0,0 +1,183 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * bloom filter on a redis bitmap with a local mirror. mightContain only reads the mirror, add sets the bits
+ * in redis and publishes the id on the channel named after the key so every node sets them as well,
+ * rebuild replaces the whole bitmap and tells every node to reload it. Until the mirror is loaded
+ * every id might be contained
+ */
+@Slf4j
+public class RedisBloomFilter {
+
+    private static final String RELOAD = "reload";
+
+    private final String key;
+    private final int bits;
+    private final int hashes;
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * bit i of the filter is bit (i % 64) of word (i / 64), null until loaded
+     */
+    private volatile AtomicLongArray local;
+
+    /**
+     * @param expectedInsertions ids the bitmap is sized for
+     * @param fpp false positive probability at expectedInsertions
+     */
+    public RedisBloomFilter(String key, long expectedInsertions, double fpp, StringRedisTemplate stringRedisTemplate) {
+        this.key = key;
+        this.stringRedisTemplate = stringRedisTemplate;
+        // m = -n * ln(p) / ln(2)^2, k = m / n * ln(2)
+        long n = Math.max(1, expectedInsertions);
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.bits = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, m));
+        this.hashes = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+    }
+
+    /**
+     * SUBSCRIBE {key}: ids added on other nodes, and reload after a rebuild
+     */
+    public void subscribe(RedisMessageListenerContainer container) {
+        container.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            if (RELOAD.equals(body)) {
+                reload();
+                return;
+            }
+            AtomicLongArray current = local;
+            if (current != null) {
+                set(current, offsets(body));
+            }
+        }, new ChannelTopic(key));
+    }
+
+    public boolean isReady() {
+        return local != null;
+    }
+
+    /**
+     * @return false if the id was never added, true if it may have been
+     */
+    public boolean mightContain(Object id) {
+        AtomicLongArray current = local;
+        if (current == null) {
+            return true;
+        }
+        for (int offset : offsets(id)) {
+            if ((current.get(offset >>> 6) & (1L << offset)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * set the bits of id locally, then SETBIT them in redis and publish the id to the other nodes in one pipeline
+     */
+    public void add(Object id) {
+        int[] offsets = offsets(id);
+        AtomicLongArray current = local;
+        if (current != null) {
+            set(current, offsets);
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int offset : offsets) {
+                conn.setBit(key, offset, true);
+            }
+            conn.publish(key, String.valueOf(id));
+            return null;
+        });
+    }
+
+    /**
+     * build the bitmap from ids, SET it to a temp key and RENAME it over the live one,
+     * then make every node reload it
+     */
+    public void rebuild(Iterable<?> ids) {
+        AtomicLongArray words = new AtomicLongArray(wordCount());
+        for (Object id : ids) {
+            set(words, offsets(id));
+        }
+        byte[] bitmap = toRedisBitmap(words);
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] tmpKey = (key + ":rebuild").getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.set(tmpKey, bitmap);
+            connection.rename(tmpKey, rawKey);
+            return null;
+        });
+        local = words;
+        stringRedisTemplate.convertAndSend(key, RELOAD);
+    }
+
+    /**
+     * replace the local mirror with the bitmap in redis
+     * @return false if the bitmap doesn't exist yet
+     */
+    public boolean reload() {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] bitmap = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+        if (bitmap == null) {
+            return false;
+        }
+        local = fromRedisBitmap(bitmap);
+        return true;
+    }
+
+    /**
+     * double hashing on murmur3 128: offset_i = h1 + i * h2 mod bits
+     */
+    private int[] offsets(Object id) {
+        long[] hash = MurmurHash.hash128(String.valueOf(id));
+        int[] offsets = new int[hashes];
+        for (int i = 0; i < hashes; i++) {
+            offsets[i] = (int) Math.floorMod(hash[0] + i * hash[1], (long) bits);
+        }
+        return offsets;
+    }
+
+    private static void set(AtomicLongArray words, int[] offsets) {
+        for (int offset : offsets) {
+            long mask = 1L << offset;
+            words.getAndAccumulate(offset >>> 6, mask, (word, m) -> word | m);
+        }
+    }
+
+    private int wordCount() {
+        return (bits + 63) >>> 6;
+    }
+
+    /**
+     * redis stores bit i in byte i / 8 counting from the most significant bit, locally it's the least significant
+     */
+    private byte[] toRedisBitmap(AtomicLongArray words) {
+        byte[] bitmap = new byte[(bits + 7) >>> 3];
+        for (int i = 0; i < bitmap.length; i++) {
+            int b = (int) (words.get(i >>> 3) >>> ((i & 7) << 3)) & 0xFF;
+            bitmap[i] = (byte) (Integer.reverse(b) >>> 24);
+        }
+        return bitmap;
+    }
+
+    private AtomicLongArray fromRedisBitmap(byte[] bitmap) {
+        long[] words = new long[wordCount()];
+        for (int i = 0; i < bitmap.length && (i >>> 3) < words.length; i++) {
+            long b = Integer.reverse(bitmap[i] & 0xFF) >>> 24;
+            words[i >>> 3] |= b << ((i & 7) << 3);
+        }
+        return new AtomicLongArray(words);
+    }
+}
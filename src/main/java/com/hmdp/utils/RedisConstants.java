@@ -11,10 +11,36 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    // UserServiceImpl.updateById删除该缓存，直接改库的昵称/头像最多5分钟后可见
+    public static final Long CACHE_USER_TTL = 5L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";
+    public static final String BLOOM_SHOP_REBUILD_KEY = "lock:bloom:shop";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_SEGMENTS_KEY = "seckill:segments:";
+    public static final String SECKILL_USERS_KEY = "seckill:users:";
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    public static final String SECKILL_DRIFT_KEY = "seckill:drift:";
+    public static final String SECKILL_RECONCILE_LOCK_KEY = "lock:seckill:reconcile";
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "group1";
+    public static final String SECKILL_ORDER_DLQ_KEY = "stream.orders.dlq";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final Long ORDER_STATUS_TTL = 86400L;
+    public static final String SECKILL_LIMITER_KEY = "seckill:limiter:";
+    public static final String ORDER_RETENTION_LOCK_KEY = "lock:order:retention";
+    public static final String ORDER_TAKEOVER_LOCK_KEY = "lock:order:takeover:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final String SECKILL_RESTOCKED_CHANNEL = "seckill:restocked";
+    public static final String ORDER_TIMEOUT_QUEUE_KEY = "order:timeout";
+    public static final String ORDER_CANCELLED_KEY = "order:cancelled:";
+    public static final Long ORDER_CANCELLED_TTL = 604800L;
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -0,0 +1,137 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * delay queue on a redis zset scored by deadline (ms). Due members are claimed in batches by delay-claim.lua,
+ * which pushes them back by a lease; a member is only removed once its handler returned normally
+ */
+@Slf4j
+public class RedisDelayQueue {
+
+    @SuppressWarnings("rawtypes")
+    public static final DefaultRedisScript<List> CLAIM_SCRIPT;
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("delay-claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    private final String queueKey;
+    private final StringRedisTemplate stringRedisTemplate;
+    private ScheduledExecutorService scheduler;
+
+    public RedisDelayQueue(String queueKey, StringRedisTemplate stringRedisTemplate) {
+        this.queueKey = queueKey;
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * ZADD queueKey deadline member for each entry, in one pipeline
+     * @param deadlines member -> deadline (epoch ms)
+     */
+    public void addAll(Map<String, Long> deadlines) {
+        if (deadlines.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            deadlines.forEach((member, deadline) -> conn.zAdd(queueKey, deadline, member));
+            return null;
+        });
+    }
+
+    public void remove(String member) {
+        stringRedisTemplate.opsForZSet().remove(queueKey, member);
+    }
+
+    /**
+     * @param max max members to claim
+     * @param leaseMillis claimed members become due again after this long unless removed
+     * @return due members, at most max
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> claim(int max, long leaseMillis) {
+        List<String> members = stringRedisTemplate.execute(
+                CLAIM_SCRIPT,
+                Collections.singletonList(queueKey),
+                String.valueOf(System.currentTimeMillis()),
+                String.valueOf(max),
+                String.valueOf(leaseMillis)
+        );
+        return members == null ? Collections.emptyList() : members;
+    }
+
+    /**
+     * poll every pollMillis, handle each due member and remove it, failed members are retried after the lease
+     */
+    public synchronized void start(long pollMillis, int batchSize, long leaseMillis, Handler handler) {
+        if (scheduler != null) {
+            return;
+        }
+        ScheduledExecutorService current = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "delay-queue-" + queueKey);
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler = current;
+        current.scheduleWithFixedDelay(() -> {
+            try {
+                Collection<String> members;
+                do {
+                    members = claim(batchSize, leaseMillis);
+                    for (String member : members) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            // 停止时剩余的成员在租期后被重新认领
+                            return;
+                        }
+                        try {
+                            handler.handle(member);
+                            remove(member);
+                        } catch (Exception e) {
+                            log.error("delay queue {} handle {} error", queueKey, member, e);
+                        }
+                    }
+                } while (members.size() == batchSize && !current.isShutdown());
+            } catch (Exception e) {
+                log.error("delay queue {} poll error", queueKey, e);
+            }
+        }, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * stop polling, a member being handled is finished, claimed ones not handled yet are claimed again after the lease
+     */
+    public synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
+                scheduler.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            scheduler.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        scheduler = null;
+    }
+
+    public interface Handler {
+        void handle(String member);
+    }
+}
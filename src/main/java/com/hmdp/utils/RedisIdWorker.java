@@ -1,11 +1,22 @@
 package com.hmdp.utils;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component
 public class RedisIdWorker {
@@ -13,8 +24,37 @@ public class RedisIdWorker {
     public static final long BEGIN_TIMESTAMP = 1735689600L;
     public static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /**
+     * TimeZone.getDefault() clones the zone on every call, read it once
+     */
+    private static final TimeZone DEFAULT_ZONE = TimeZone.getDefault();
+
     StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * sequence numbers leased per INCRBY, 0 keeps one INCR per id
+     */
+    @Value("${hmdp.id.segment-step:0}")
+    private int segmentStep;
+
+    /**
+     * keyPrefix -> leased sequence segments of this node
+     */
+    private final Map<String, SegmentBuffer> segmentBuffers = new ConcurrentHashMap<>();
+
+    /**
+     * cached "yyyy:MM:dd" of the current day, avoids formatting a date per id
+     */
+    private volatile DayKey dayKey = new DayKey(-1, null);
+
+    private final ExecutorService segmentPrefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
@@ -25,21 +65,147 @@ public class RedisIdWorker {
      * @return an unique id
      */
     public long nextId(String keyPrefix) {
-        // 1. 生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long timeStamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        // 1. 生成时间戳，与 LocalDateTime.now().toEpochSecond(ZoneOffset.UTC) 相同
+        long nowMillis = System.currentTimeMillis();
+        long localSecond = nowMillis / 1000 + zoneOffsetSeconds(nowMillis);
+        long timeStamp = localSecond - BEGIN_TIMESTAMP;
 
         // 2. 生成序列号
         // 2.1 获取日期
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = dateOf(localSecond);
         // 2.2 redis对某个key的value做自增，key与date有关
         // cnt：某一天的计数器
-        long cnt = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long cnt;
+        if (segmentStep <= 0) {
+            cnt = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        } else {
+            cnt = segmentBuffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(date);
+        }
 
         // 3. 拼接并范围
         return timeStamp << COUNT_BITS | cnt;
     }
 
+    /**
+     * offset of the default zone, the id timestamp is the local wall clock read as UTC
+     * @param epochMillis instant to get the offset at
+     * @return offset in seconds
+     */
+    public static int zoneOffsetSeconds(long epochMillis) {
+        return DEFAULT_ZONE.getOffset(epochMillis) / 1000;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        segmentPrefetchExecutor.shutdownNow();
+    }
+
+    private String dateOf(long localSecond) {
+        long epochDay = Math.floorDiv(localSecond, 86400L);
+        DayKey current = dayKey;
+        if (current.epochDay != epochDay) {
+            current = new DayKey(epochDay, LocalDate.ofEpochDay(epochDay).format(DATE_FORMATTER));
+            dayKey = current;
+        }
+        return current.date;
+    }
+
+    /**
+     * INCRBY icr:{keyPrefix}:{date} step, this node owns (end - step, end]
+     */
+    private Segment lease(String keyPrefix, String date) {
+        Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, segmentStep);
+        if (end == null) {
+            throw new IllegalStateException("lease id segment failed, key prefix: " + keyPrefix);
+        }
+        return new Segment(date, end - segmentStep + 1, end);
+    }
+
+    private static class DayKey {
+        private final long epochDay;
+        private final String date;
+
+        private DayKey(long epochDay, String date) {
+            this.epochDay = epochDay;
+            this.date = date;
+        }
+    }
+
+    private static class Segment {
+        private final String date;
+        private final long max;
+        private final AtomicLong cursor;
+        /**
+         * handing out this value starts prefetching the next segment (80% consumed)
+         */
+        private final long prefetchAt;
+
+        private Segment(String date, long start, long max) {
+            this.date = date;
+            this.max = max;
+            this.cursor = new AtomicLong(start);
+            this.prefetchAt = start + (max - start + 1) * 8 / 10;
+        }
+    }
+
+    /**
+     * current segment of one key prefix plus the asynchronously prefetched next one
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private CompletableFuture<Segment> prefetch;
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long next(String date) {
+            while (true) {
+                Segment segment = current;
+                if (segment == null || !segment.date.equals(date)) {
+                    advance(segment, date);
+                    continue;
+                }
+                long cnt = segment.cursor.getAndIncrement();
+                if (cnt <= segment.max) {
+                    if (cnt == segment.prefetchAt) {
+                        prefetch(date);
+                    }
+                    return cnt;
+                }
+                // 当前号段用完，切换到预取的号段
+                advance(segment, date);
+            }
+        }
+
+        private synchronized void prefetch(String date) {
+            if (prefetch == null) {
+                prefetch = CompletableFuture.supplyAsync(() -> lease(keyPrefix, date), segmentPrefetchExecutor);
+            }
+        }
+
+        private synchronized void advance(Segment exhausted, String date) {
+            if (current != exhausted) {
+                // 其他线程已经切换过了
+                return;
+            }
+            Segment next = null;
+            if (prefetch != null) {
+                try {
+                    next = prefetch.join();
+                } catch (Exception e) {
+                    // 预取失败，下面同步获取
+                }
+                prefetch = null;
+            }
+            if (next == null || !next.date.equals(date)) {
+                next = lease(keyPrefix, date);
+            }
+            current = next;
+        }
+    }
+
     public static void main(String[] args) {
         LocalDateTime time = LocalDateTime.of(2025, 1, 1, 0, 0, 0);
         long second = time.toEpochSecond(ZoneOffset.UTC);
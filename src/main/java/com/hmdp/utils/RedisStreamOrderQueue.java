@@ -0,0 +1,707 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.RuntimeUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.ORDER_TAKEOVER_LOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM_KEY;
+
+/**
+ * default order queue: redis stream(s) written by seckill.lua, read by a consumer group
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.order.queue", havingValue = "stream", matchIfMissing = true)
+public class RedisStreamOrderQueue implements IOrderQueue {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * separate pool for the XREADGROUP BLOCK calls, see RedisPoolConfig
+     */
+    @Resource
+    private StringRedisTemplate streamRedisTemplate;
+
+    /**
+     * max orders per XREADGROUP, 1 keeps the one-by-one consumer
+     */
+    @Value("${hmdp.seckill.order.batch-size:1}")
+    private int orderBatchSize;
+
+    /**
+     * max time to wait for a batch to fill up after its first order arrived
+     */
+    @Value("${hmdp.seckill.order.batch-linger-ms:50}")
+    private long orderBatchLingerMs;
+
+    /**
+     * consumers started per instance
+     */
+    @Value("${hmdp.seckill.order.consumers:1}")
+    private int minConsumers;
+
+    /**
+     * upper bound the pool may scale up to when the group lags behind
+     */
+    @Value("${hmdp.seckill.order.max-consumers:4}")
+    private int maxConsumers;
+
+    /**
+     * group lag (ms between the newest entry and the last delivered one) that adds a consumer
+     */
+    @Value("${hmdp.seckill.order.scale-up-lag-ms:1000}")
+    private long scaleUpLagMs;
+
+    /**
+     * pending entries idle longer than this are claimed from their (probably dead) owner
+     */
+    @Value("${hmdp.seckill.order.claim-idle-ms:60000}")
+    private long claimIdleMs;
+
+    /**
+     * number of stream.orders:{p} partitions keyed by voucher id, 0 keeps the single stream.orders
+     */
+    @Value("${hmdp.seckill.order.partitions:0}")
+    private int orderPartitions;
+
+    /**
+     * partitioned mode: this instance consumes the partitions p with p % instance-count == instance-index,
+     * so every partition has exactly one consumer across the cluster and keeps its per-voucher order.
+     * If an instance is gone for good, a surviving one reclaims its pending entries and reads its
+     * partitions until the instance index is started again, see takeOverOrphanedOrders
+     */
+    @Value("${hmdp.seckill.order.instance-index:0}")
+    private int instanceIndex;
+
+    @Value("${hmdp.seckill.order.instance-count:1}")
+    private int instanceCount;
+
+    private static final String RECLAIMER_SUFFIX = "-reclaimer";
+
+    /**
+     * deliveries after which a failing order is moved to stream.orders.dlq
+     */
+    @Value("${hmdp.seckill.order.max-deliveries:5}")
+    private int maxDeliveries;
+
+    /**
+     * consumers, and reclaim / scale tasks, of the current start() .. stop() run
+     */
+    private ExecutorService orderExecutor;
+
+    private ScheduledExecutorService orderScheduler;
+
+    private volatile boolean paused;
+
+    /**
+     * running consumers of this instance, the last one is stopped first when scaling down
+     */
+    private final Deque<VoucherOrderHandler> orderHandlers = new ConcurrentLinkedDeque<>();
+
+    private final AtomicInteger consumerSeq = new AtomicInteger();
+
+    /**
+     * host-pid, unique per running instance
+     */
+    private final String consumerPrefix = NetUtil.getLocalHostName() + "-" + RuntimeUtil.getPid();
+
+    private OrderHandler handler;
+
+    @Override
+    public boolean publishedByScript() {
+        return true;
+    }
+
+    @Override
+    public int partitions() {
+        return Math.max(0, orderPartitions);
+    }
+
+    @Override
+    public void publish(VoucherOrder voucherOrder) {
+        // XADD stream.orders * userId u voucherId v id o
+        Map<String, String> values = new HashMap<>(4);
+        values.put("userId", voucherOrder.getUserId().toString());
+        values.put("voucherId", voucherOrder.getVoucherId().toString());
+        values.put("id", voucherOrder.getId().toString());
+        String streamKey = orderPartitions > 0
+                ? SECKILL_ORDER_STREAM_KEY + ":" + voucherOrder.getVoucherId() % orderPartitions
+                : SECKILL_ORDER_STREAM_KEY;
+        stringRedisTemplate.opsForStream().add(StreamRecords.mapBacked(values).withStreamKey(streamKey));
+    }
+
+    @Override
+    public synchronized void start(OrderHandler handler) {
+        if (orderExecutor != null) {
+            return;
+        }
+        this.handler = handler;
+        orderExecutor = Executors.newCachedThreadPool();
+        orderScheduler = Executors.newSingleThreadScheduledExecutor();
+        for (String streamKey : orderStreamKeys()) {
+            createGroupIfAbsent(streamKey);
+        }
+        if (orderPartitions > 0) {
+            if (instanceCount < 1 || instanceIndex < 0 || instanceIndex >= instanceCount) {
+                throw new IllegalStateException("hmdp.seckill.order.instance-index " + instanceIndex
+                        + " out of instance-count " + instanceCount);
+            }
+            // 集群内每个分区只有一个消费者，保证同一张券的订单按顺序落库
+            for (String streamKey : ownedStreamKeys()) {
+                startOrderHandler(streamKey);
+            }
+        } else {
+            for (int i = 0; i < Math.max(1, minConsumers); i++) {
+                startOrderHandler(SECKILL_ORDER_STREAM_KEY);
+            }
+        }
+        orderScheduler.scheduleWithFixedDelay(this::reclaimIdleOrders, claimIdleMs, claimIdleMs, TimeUnit.MILLISECONDS);
+        orderScheduler.scheduleWithFixedDelay(this::scaleOrderHandlers, 5, 5, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public synchronized void stop(long timeoutMillis) {
+        if (orderExecutor == null) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        // 1. 不再认领和扩缩容，正在执行的认领任务会完成
+        orderScheduler.shutdown();
+        // 2. 消费者在当前BLOCK读取返回后退出，处理中的订单完成并ack
+        for (VoucherOrderHandler orderHandler : orderHandlers) {
+            orderHandler.running = false;
+        }
+        orderHandlers.clear();
+        orderExecutor.shutdown();
+        try {
+            boolean drained = orderScheduler.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)
+                    && orderExecutor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            if (!drained) {
+                log.warn("order consumers not drained in {} ms, unfinished orders stay in the pending list", timeoutMillis);
+                orderScheduler.shutdownNow();
+                orderExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            orderScheduler.shutdownNow();
+            orderExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        orderExecutor = null;
+        orderScheduler = null;
+        log.info("order consumers stopped");
+    }
+
+    @Override
+    public void pause() {
+        paused = true;
+        log.info("order consumers paused");
+    }
+
+    @Override
+    public void resume() {
+        paused = false;
+        log.info("order consumers resumed");
+    }
+
+    @Override
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * @return stream.orders, or stream.orders:0 .. stream.orders:{partitions-1} in partitioned mode
+     */
+    List<String> orderStreamKeys() {
+        if (orderPartitions <= 0) {
+            return Collections.singletonList(SECKILL_ORDER_STREAM_KEY);
+        }
+        List<String> keys = new ArrayList<>(orderPartitions);
+        for (int p = 0; p < orderPartitions; p++) {
+            keys.add(SECKILL_ORDER_STREAM_KEY + ":" + p);
+        }
+        return keys;
+    }
+
+    /**
+     * streams this instance consumes and reclaims: all of them, or its share of the partitions
+     */
+    private List<String> ownedStreamKeys() {
+        List<String> keys = orderStreamKeys();
+        if (orderPartitions <= 0) {
+            return keys;
+        }
+        List<String> owned = new ArrayList<>();
+        for (int p = 0; p < keys.size(); p++) {
+            if (p % instanceCount == instanceIndex) {
+                owned.add(keys.get(p));
+            }
+        }
+        return owned;
+    }
+
+    /**
+     * XGROUP CREATE key group1 0 MKSTREAM, the group may already exist
+     */
+    private void createGroupIfAbsent(String streamKey) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                    ((StringRedisConnection) connection).xGroupCreate(streamKey, ReadOffset.from("0"), SECKILL_ORDER_GROUP, true));
+        } catch (Exception e) {
+            // BUSYGROUP Consumer Group name already exists
+            log.debug("order group of {} not created: {}", streamKey, e.getMessage());
+        }
+    }
+
+    private void startOrderHandler(String streamKey) {
+        VoucherOrderHandler orderHandler = new VoucherOrderHandler(streamKey, consumerPrefix + "-c" + consumerSeq.incrementAndGet());
+        orderHandlers.addLast(orderHandler);
+        orderExecutor.submit(orderHandler);
+        log.info("order consumer {} of {} started", orderHandler.consumer.getName(), streamKey);
+    }
+
+    /**
+     * add a consumer while the group lags behind the producers, drop one once it has caught up
+     */
+    private void scaleOrderHandlers() {
+        if (orderPartitions > 0 || paused) {
+            // 分区模式下每个分区固定一个消费者
+            return;
+        }
+        try {
+            String queueName = SECKILL_ORDER_STREAM_KEY;
+            // XINFO STREAM stream.orders / XINFO GROUPS stream.orders
+            String lastGeneratedId = stringRedisTemplate.opsForStream().info(queueName).lastGeneratedId();
+            StreamInfo.XInfoGroup group = stringRedisTemplate.opsForStream().groups(queueName).stream()
+                    .filter(g -> SECKILL_ORDER_GROUP.equals(g.groupName()))
+                    .findFirst()
+                    .orElse(null);
+            if (group == null) {
+                return;
+            }
+            // stream id is <ms>-<seq>, so the difference of the ms parts is how far the group is behind
+            long lagMs = RecordId.of(lastGeneratedId).getTimestamp() - RecordId.of(group.lastDeliveredId()).getTimestamp();
+
+            int size = orderHandlers.size();
+            if (lagMs > scaleUpLagMs && size < maxConsumers) {
+                log.info("order group lags {} ms behind, scale up to {} consumers", lagMs, size + 1);
+                startOrderHandler(SECKILL_ORDER_STREAM_KEY);
+            } else if (lagMs == 0 && size > Math.max(1, minConsumers)) {
+                VoucherOrderHandler orderHandler = orderHandlers.pollLast();
+                if (orderHandler != null) {
+                    log.info("order group caught up, stop consumer {}", orderHandler.consumer.getName());
+                    orderHandler.running = false;
+                }
+            }
+        } catch (Exception e) {
+            log.error("scale order consumers error", e);
+        }
+    }
+
+    /**
+     * XPENDING / XCLAIM the entries other consumers left idle for more than claimIdleMs
+     * (crashed instances, stopped consumers), persist them and ack them. Covers every partition,
+     * not only the owned ones, so the pending list of a dead instance is never stranded
+     */
+    private void reclaimIdleOrders() {
+        if (paused) {
+            return;
+        }
+        List<String> owned = ownedStreamKeys();
+        for (String streamKey : orderStreamKeys()) {
+            reclaimIdleOrders(streamKey);
+            if (!owned.contains(streamKey)) {
+                takeOverOrphanedOrders(streamKey);
+            }
+            removeIdleConsumers(streamKey);
+        }
+    }
+
+    /**
+     * a foreign partition whose consumers all went idle for more than claimIdleMs has lost its instance:
+     * one surviving instance, holding lock:order:takeover:{stream}, reads its new entries with its reclaimer
+     * until the owner consumes again, so they still reach mysql or the dlq
+     */
+    private void takeOverOrphanedOrders(String queueName) {
+        try {
+            StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(queueName, SECKILL_ORDER_GROUP);
+            boolean ownerAlive = consumers.stream()
+                    .anyMatch(c -> !c.consumerName().endsWith(RECLAIMER_SUFFIX) && c.idleTimeMs() < claimIdleMs);
+            if (ownerAlive) {
+                return;
+            }
+            // 只允许一个实例接管，租约随每轮接管续期
+            String lockKey = ORDER_TAKEOVER_LOCK_KEY + queueName;
+            Duration lease = Duration.ofMillis(claimIdleMs * 2);
+            if (!Boolean.TRUE.equals(stringRedisTemplate.opsForValue().setIfAbsent(lockKey, consumerPrefix, lease))) {
+                if (!consumerPrefix.equals(stringRedisTemplate.opsForValue().get(lockKey))) {
+                    return;
+                }
+                stringRedisTemplate.expire(lockKey, lease);
+            }
+            String reclaimer = consumerPrefix + RECLAIMER_SUFFIX;
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                    Consumer.from(SECKILL_ORDER_GROUP, reclaimer),
+                    StreamReadOptions.empty().count(100),
+                    StreamOffset.create(queueName, ReadOffset.lastConsumed()));
+            if (records == null || records.isEmpty()) {
+                return;
+            }
+            log.warn("took over {} orders of {}, its instance is gone", records.size(), queueName);
+            for (MapRecord<String, Object, Object> record : records) {
+                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+                List<VoucherOrder> voucherOrders = Collections.singletonList(voucherOrder);
+                acknowledge(queueName, voucherOrders, handler.handle(voucherOrders), record.getId());
+            }
+        } catch (Exception e) {
+            // 未ack的订单留在reclaimer的pending list中，由reclaimIdleOrders重试或进入死信队列
+            log.error("take over orders of {} error", queueName, e);
+        }
+    }
+
+    /**
+     * XGROUP DELCONSUMER the consumers of stopped or crashed instances once they hold no pending entries,
+     * consumer names carry the pid so every restart would otherwise leave one behind
+     */
+    private void removeIdleConsumers(String queueName) {
+        try {
+            Set<String> localConsumers = orderHandlers.stream()
+                    .map(orderHandler -> orderHandler.consumer.getName())
+                    .collect(Collectors.toSet());
+            StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(queueName, SECKILL_ORDER_GROUP);
+            consumers.stream()
+                    .filter(c -> !localConsumers.contains(c.consumerName()))
+                    .filter(c -> c.pendingCount() == 0 && c.idleTimeMs() > claimIdleMs)
+                    .forEach(c -> {
+                        stringRedisTemplate.opsForStream().deleteConsumer(queueName, Consumer.from(SECKILL_ORDER_GROUP, c.consumerName()));
+                        log.info("removed idle order consumer {} of {}", c.consumerName(), queueName);
+                    });
+        } catch (Exception e) {
+            log.error("remove idle order consumers of {} error", queueName, e);
+        }
+    }
+
+    private void reclaimIdleOrders(String queueName) {
+        String reclaimer = consumerPrefix + RECLAIMER_SUFFIX;
+        try {
+            Set<String> localConsumers = orderHandlers.stream()
+                    .map(orderHandler -> orderHandler.consumer.getName())
+                    .collect(Collectors.toSet());
+            // XPENDING stream.orders group1 - + 100
+            PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                    .pending(queueName, SECKILL_ORDER_GROUP, Range.unbounded(), 100L);
+            List<RecordId> idleIds = new ArrayList<>();
+            for (PendingMessage pendingMessage : pendingMessages) {
+                if (localConsumers.contains(pendingMessage.getConsumerName())) {
+                    // 本实例存活的消费者自己处理pending list
+                    continue;
+                }
+                if (pendingMessage.getElapsedTimeSinceLastDelivery().toMillis() < claimIdleMs) {
+                    continue;
+                }
+                if (pendingMessage.getTotalDeliveryCount() >= maxDeliveries) {
+                    // 超过最大投递次数，不再认领，直接进入死信队列
+                    List<MapRecord<String, Object, Object>> dead = stringRedisTemplate.opsForStream()
+                            .range(queueName, Range.just(pendingMessage.getIdAsString()));
+                    if (dead != null && !dead.isEmpty()) {
+                        deadLetter(queueName, dead.get(0), "exceeded " + maxDeliveries + " deliveries");
+                    }
+                    continue;
+                }
+                idleIds.add(pendingMessage.getId());
+            }
+            if (idleIds.isEmpty()) {
+                return;
+            }
+
+            // XCLAIM stream.orders group1 reclaimer min-idle id...
+            List<StringRecord> records = stringRedisTemplate.execute((RedisCallback<List<StringRecord>>) connection ->
+                    ((StringRedisConnection) connection).xClaim(queueName, SECKILL_ORDER_GROUP, reclaimer,
+                            Duration.ofMillis(claimIdleMs), idleIds.toArray(new RecordId[0])));
+            if (records == null) {
+                return;
+            }
+            log.info("reclaimed {} idle orders", records.size());
+            for (StringRecord record : records) {
+                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+                List<VoucherOrder> voucherOrders = Collections.singletonList(voucherOrder);
+                acknowledge(queueName, voucherOrders, handler.handle(voucherOrders), record.getId());
+            }
+        } catch (Exception e) {
+            log.error("reclaim idle orders error", e);
+        }
+    }
+
+    /**
+     * XACK the records and flip order:status:{id} to PERSISTED / FAILED in one pipeline
+     */
+    private void acknowledge(String queueName, List<VoucherOrder> voucherOrders, Map<Long, String> failures, RecordId... recordIds) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.xAck(queueName, SECKILL_ORDER_GROUP, recordIds);
+            OrderStatusUtils.markHandled(conn, voucherOrders, failures);
+            return null;
+        });
+    }
+
+    /**
+     * XADD stream.orders.dlq with the order, its source and the error, then XACK it in the source stream
+     */
+    private void deadLetter(String queueName, MapRecord<String, Object, Object> record, String error) {
+        Map<String, String> values = new HashMap<>();
+        record.getValue().forEach((k, v) -> values.put(k.toString(), v.toString()));
+        values.put("source", queueName);
+        values.put("sourceId", record.getId().getValue());
+        values.put("error", StrUtil.maxLength(StrUtil.nullToEmpty(error), 512));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.xAdd(StreamRecords.newRecord().in(SECKILL_ORDER_DLQ_KEY).ofStrings(values));
+            conn.xAck(queueName, SECKILL_ORDER_GROUP, record.getId());
+            if (StrUtil.isNotBlank(values.get("id"))) {
+                OrderStatusUtils.mark(conn, Long.valueOf(values.get("id")), OrderStatusUtils.FAILED, error);
+            }
+            return null;
+        });
+        log.error("order {} of {} moved to {}: {}", record.getId(), queueName, SECKILL_ORDER_DLQ_KEY, error);
+    }
+
+    /**
+     * XRANGE stream.orders.dlq - + COUNT n, XADD each order back to its source stream and XDEL it, in one pipeline
+     */
+    @Override
+    public int replayDeadLetters(int count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(SECKILL_ORDER_DLQ_KEY, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        if (records == null || records.isEmpty()) {
+            return 0;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (MapRecord<String, Object, Object> record : records) {
+                Map<String, String> values = new HashMap<>();
+                record.getValue().forEach((k, v) -> values.put(k.toString(), v.toString()));
+                String source = values.remove("source");
+                values.remove("sourceId");
+                values.remove("error");
+                conn.xAdd(StreamRecords.newRecord().in(StrUtil.blankToDefault(source, SECKILL_ORDER_STREAM_KEY)).ofStrings(values));
+                conn.xDel(SECKILL_ORDER_DLQ_KEY, record.getId());
+            }
+            return null;
+        });
+        log.info("replayed {} dead lettered orders", records.size());
+        return records.size();
+    }
+
+    private class VoucherOrderHandler implements Runnable {
+
+        private final String queueName;
+
+        private final Consumer consumer;
+
+        private volatile boolean running = true;
+
+        VoucherOrderHandler(String queueName, String consumerName) {
+            this.queueName = queueName;
+            this.consumer = Consumer.from(SECKILL_ORDER_GROUP, consumerName);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    if (paused) {
+                        // 暂停期间不读取新订单
+                        Thread.sleep(200);
+                        continue;
+                    }
+                    if (orderBatchSize > 1) {
+                        handleBatch();
+                        continue;
+                    }
+                    // 获取消息队列中待更新到数据库中的order
+                    // XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> lst = streamRedisTemplate.opsForStream().read(
+                            consumer,
+                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
+                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                    );
+
+                    // 2. 判断消息获取是否成功
+                    if (lst == null || lst.isEmpty()) {
+                        // 2.1 获取失败，没有消息，继续下一次循环
+                        continue;
+                    }
+                    // 3. 有消息，下单，在数据库中创建订单
+                    // 解析消息
+                    MapRecord<String, Object, Object> record = lst.get(0);
+                    Map<Object, Object> values = record.getValue();
+                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+                    List<VoucherOrder> voucherOrders = Collections.singletonList(voucherOrder);
+                    Map<Long, String> failures = handler.handle(voucherOrders);
+                    // 4. ACK确认读取出的消息被消费掉了，同一个pipeline中更新订单状态
+                    // SACK stream.orders group1 id
+                    acknowledge(queueName, voucherOrders, failures, record.getId());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("VoucherOrderHandler error", e);
+                    handlePendingList(e);
+                }
+            }
+            removeIfIdle();
+        }
+
+        /**
+         * XGROUP DELCONSUMER this consumer when it stops with an empty pending list,
+         * otherwise the reclaimer takes its entries over and removes it later
+         */
+        private void removeIfIdle() {
+            try {
+                if (stringRedisTemplate.opsForStream().pending(queueName, consumer, Range.unbounded(), 1L).isEmpty()) {
+                    stringRedisTemplate.opsForStream().deleteConsumer(queueName, consumer);
+                }
+            } catch (Exception e) {
+                log.warn("remove order consumer {} error: {}", consumer.getName(), e.getMessage());
+            }
+        }
+
+        /**
+         * read up to orderBatchSize orders, persist them in one transaction and ack them with one XACK.
+         * a failed batch stays in the pending list and is replayed one by one by handlePendingList
+         */
+        private void handleBatch() {
+            // 1. read a batch of orders
+            List<MapRecord<String, Object, Object>> records = readBatch();
+            if (records.isEmpty()) {
+                return;
+            }
+
+            // 2. parse orders
+            List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+            RecordId[] recordIds = new RecordId[records.size()];
+            for (int i = 0; i < records.size(); i++) {
+                MapRecord<String, Object, Object> record = records.get(i);
+                voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                recordIds[i] = record.getId();
+            }
+
+            // 3. multi-row insert and stock = stock - k per voucher
+            Map<Long, String> failures = handler.handle(voucherOrders);
+
+            // 4. XACK stream.orders group1 id1 id2 ... and order status in one pipeline
+            acknowledge(queueName, voucherOrders, failures, recordIds);
+        }
+
+        /**
+         * XREADGROUP GROUP group1 c1 COUNT n BLOCK 2000 STREAMS stream.orders >
+         * once the first record arrives, keep reading until the batch is full or the linger time is up
+         */
+        private List<MapRecord<String, Object, Object>> readBatch() {
+            List<MapRecord<String, Object, Object>> first = streamRedisTemplate.opsForStream().read(
+                    consumer,
+                    StreamReadOptions.empty().count(orderBatchSize).block(Duration.ofSeconds(2)),
+                    StreamOffset.create(queueName, ReadOffset.lastConsumed())
+            );
+            if (first == null || first.isEmpty()) {
+                return Collections.emptyList();
+            }
+
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>(first);
+            long deadline = System.currentTimeMillis() + orderBatchLingerMs;
+            while (batch.size() < orderBatchSize) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                List<MapRecord<String, Object, Object>> more = streamRedisTemplate.opsForStream().read(
+                        consumer,
+                        StreamReadOptions.empty().count(orderBatchSize - batch.size()).block(Duration.ofMillis(remaining)),
+                        StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                );
+                if (more == null || more.isEmpty()) {
+                    break;
+                }
+                batch.addAll(more);
+            }
+            return batch;
+        }
+
+        /**
+         * replay this consumer's pending list one by one. a record delivered maxDeliveries times
+         * is moved to stream.orders.dlq together with the last error, so one poison message can't stall the consumer
+         * @param cause error that sent the consumer here
+         */
+        private void handlePendingList(Exception cause) {
+            Exception lastError = cause;
+            while (running && !paused) {
+                MapRecord<String, Object, Object> record = null;
+                try {
+                    // 获取消息队列中待更新到数据库中的order
+                    // XREADGROUP GROUP g1 c1 COUNT 1 STREAMS stream.orders 0
+                    List<MapRecord<String, Object, Object>> lst = stringRedisTemplate.opsForStream().read(
+                            consumer,
+                            StreamReadOptions.empty().count(1),
+                            StreamOffset.create(queueName, ReadOffset.from("0"))
+                    );
+
+                    // 2. 判断消息获取是否成功
+                    if (lst == null || lst.isEmpty()) {
+                        // 2.1 获取失败，pending list没有消息，继续下一次循环
+                        break;
+                    }
+                    record = lst.get(0);
+
+                    // 2.2 XPENDING stream.orders group1 id id 1 c1: 投递次数超限，进入死信队列
+                    PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                            queueName, consumer, Range.just(record.getId().getValue()), 1L);
+                    if (!pending.isEmpty() && pending.get(0).getTotalDeliveryCount() >= maxDeliveries) {
+                        deadLetter(queueName, record, String.valueOf(lastError));
+                        continue;
+                    }
+
+                    // 3. 有消息，下单，在数据库中创建订单
+                    // 解析消息
+                    Map<Object, Object> values = record.getValue();
+                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+                    List<VoucherOrder> voucherOrders = Collections.singletonList(voucherOrder);
+                    Map<Long, String> failures = handler.handle(voucherOrders);
+                    // 4. ACK确认读取出的消息被消费掉了，同一个pipeline中更新订单状态
+                    // SACK stream.orders group1 id
+                    acknowledge(queueName, voucherOrders, failures, record.getId());
+                } catch (Exception e) {
+                    log.error("VoucherOrderHandler error, record: {}", record == null ? null : record.getId(), e);
+                    lastError = e;
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
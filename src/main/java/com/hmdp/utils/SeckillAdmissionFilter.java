@@ -0,0 +1,151 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_META_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCKED_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * local admission layer in front of seckill.lua,
+ * rejects requests of sold out vouchers and repeat buyers without touching redis
+ */
+@Slf4j
+@Component
+public class SeckillAdmissionFilter {
+
+    @Value("${hmdp.seckill.admission.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * a sold out flag is trusted this long, after that the next request asks seckill.lua again.
+     * bounds the damage of a sold out message that arrives after the restock it predates
+     */
+    @Value("${hmdp.seckill.admission.sold-out-ttl-ms:2000}")
+    private long soldOutTtlMs;
+
+    /**
+     * tb_user.id is AUTO_INCREMENT, so bought users are a dense bitmap per voucher;
+     * users above this id are not tracked and always reach the script
+     */
+    @Value("${hmdp.seckill.admission.max-user-id:16777216}")
+    private int maxUserId;
+
+    /**
+     * vouchers with a bought-users bitmap, least recently used ones are dropped beyond this
+     */
+    @Value("${hmdp.seckill.admission.max-vouchers:16}")
+    private int maxVouchers;
+
+    /**
+     * sold out flags kept at most, least recently used ones are dropped beyond this
+     */
+    @Value("${hmdp.seckill.admission.max-sold-out:1024}")
+    private int maxSoldOut;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * sold out voucher ids, each expires after soldOutTtlMs; shared by all nodes through SECKILL_SOLD_OUT_CHANNEL.
+     * A bounded LRU because ids of vouchers that don't exist are reported sold out by the script as well
+     */
+    private Cache<Long, Boolean> soldOutVouchers;
+
+    /**
+     * voucher id -> bitmap of the ids of users who already got an order on this node
+     */
+    private Cache<Long, BitSet> boughtUsers;
+
+    @PostConstruct
+    public void init() {
+        boughtUsers = CacheUtil.newLRUCache(maxVouchers);
+        soldOutVouchers = CacheUtil.newLRUCache(maxSoldOut, soldOutTtlMs);
+        // SUBSCRIBE seckill:sold-out
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            Long voucherId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+            soldOutVouchers.put(voucherId, Boolean.TRUE);
+            boughtUsers.remove(voucherId);
+        }, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        // SUBSCRIBE seckill:restocked, published by seckill-cancel.lua as voucherId:userId
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+            Long voucherId = Long.valueOf(parts[0]);
+            soldOutVouchers.remove(voucherId);
+            long userId = Long.parseLong(parts[1]);
+            BitSet users = boughtUsers.get(voucherId, false);
+            if (users != null && userId >= 0 && userId < maxUserId) {
+                synchronized (users) {
+                    users.clear((int) userId);
+                }
+            }
+        }, new ChannelTopic(SECKILL_RESTOCKED_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        if (!enabled) {
+            return false;
+        }
+        // 过期的标记在get时被移除
+        return soldOutVouchers.get(voucherId, false) != null;
+    }
+
+    public boolean hasBought(Long voucherId, Long userId) {
+        if (!enabled || userId < 0 || userId >= maxUserId) {
+            return false;
+        }
+        BitSet users = boughtUsers.get(voucherId, false);
+        if (users == null) {
+            return false;
+        }
+        synchronized (users) {
+            return users.get(userId.intValue());
+        }
+    }
+
+    /**
+     * seckill.lua returned 1, mark locally and tell the other nodes. Ids without seckill:meta (no such
+     * seckill voucher, or one that ended) are only marked locally, so arbitrary ids can't flood the channel
+     */
+    public void markSoldOut(Long voucherId) {
+        if (!enabled || isSoldOut(voucherId)) {
+            return;
+        }
+        soldOutVouchers.put(voucherId, Boolean.TRUE);
+        // bought users are only needed while there is stock left
+        boughtUsers.remove(voucherId);
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_META_KEY + voucherId))) {
+            return;
+        }
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        log.info("voucher {} sold out", voucherId);
+    }
+
+    /**
+     * seckill.lua returned 0 or 2, the user can never order this voucher again
+     */
+    public void markBought(Long voucherId, Long userId) {
+        if (!enabled || userId < 0 || userId >= maxUserId || isSoldOut(voucherId)) {
+            return;
+        }
+        BitSet users = boughtUsers.get(voucherId, false, BitSet::new);
+        synchronized (users) {
+            users.set(userId.intValue());
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RRateLimiter;
+import org.redisson.api.RateIntervalUnit;
+import org.redisson.api.RateType;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LIMITER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_META_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SEGMENTS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * per-voucher token bucket in front of seckill.lua: the rate follows the remaining stock divided by
+ * the expected conversion, so the load on the script is bounded by stock instead of by the crowd.
+ * The stock is read by a background task, taking a local permit never waits on redis
+ */
+@Slf4j
+@Component
+public class SeckillRateLimiter {
+
+    @Value("${hmdp.seckill.rate-limit.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * expected share of admitted requests that turn into an order, rate = stock / conversion per second
+     */
+    @Value("${hmdp.seckill.rate-limit.conversion:0.5}")
+    private double conversion;
+
+    /**
+     * lower bound of the rate, keeps a trickle going so sold out is still detected by the script
+     */
+    @Value("${hmdp.seckill.rate-limit.min-rate:10}")
+    private long minRate;
+
+    /**
+     * instances sharing the rate, each local bucket gets rate / nodes. Defaults to the instance count of the order queue
+     */
+    @Value("${hmdp.seckill.rate-limit.nodes:${hmdp.seckill.order.instance-count:1}}")
+    private int nodes;
+
+    /**
+     * how often the buckets re-read the remaining stock, in the background
+     */
+    @Value("${hmdp.seckill.rate-limit.refresh-ms:1000}")
+    private long refreshMs;
+
+    /**
+     * also take a permit from a redisson RRateLimiter shared by all instances
+     */
+    @Value("${hmdp.seckill.rate-limit.global:false}")
+    private boolean global;
+
+    /**
+     * a bucket without requests for this long is dropped, so is one whose seckill:meta expired
+     */
+    @Value("${hmdp.seckill.rate-limit.idle-ms:60000}")
+    private long idleMs;
+
+    /**
+     * max voucher ids waiting for the seckill:meta check that creates their bucket
+     */
+    private static final int MAX_PENDING_VOUCHERS = 1024;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    private final Map<Long, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    private final Set<Long> pendingVouchers = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService rateRefreshScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "seckill-rate-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        rateRefreshScheduler.scheduleWithFixedDelay(this::refreshRates, refreshMs, refreshMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        rateRefreshScheduler.shutdownNow();
+    }
+
+    /**
+     * one pass over the buckets: drop idle and ended ones, the others re-read their remaining stock
+     */
+    private void refreshRates() {
+        long now = System.currentTimeMillis();
+        for (Iterator<TokenBucket> it = buckets.values().iterator(); it.hasNext(); ) {
+            TokenBucket bucket = it.next();
+            try {
+                if (now - bucket.lastAcquireMillis > idleMs
+                        || !Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_META_KEY + bucket.voucherId))) {
+                    it.remove();
+                    continue;
+                }
+            } catch (Exception e) {
+                log.error("check seckill meta of voucher {} error", bucket.voucherId, e);
+            }
+            bucket.refreshRate();
+        }
+    }
+
+    /**
+     * runs on the refresh scheduler: create the bucket if the voucher is a seckill voucher with seckill:meta,
+     * requests for unknown ids never get one
+     */
+    private void createBucket(Long voucherId) {
+        try {
+            if (!buckets.containsKey(voucherId)
+                    && Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_META_KEY + voucherId))) {
+                buckets.putIfAbsent(voucherId, new TokenBucket(voucherId, rateOf(voucherId)));
+            }
+        } catch (Exception e) {
+            log.error("create seckill rate limiter of voucher {} error", voucherId, e);
+        } finally {
+            pendingVouchers.remove(voucherId);
+        }
+    }
+
+    /**
+     * @param voucherId voucher id
+     * @return false if the request should be rejected with "busy, retry"
+     */
+    public boolean tryAcquire(Long voucherId) {
+        if (!enabled) {
+            return true;
+        }
+        TokenBucket bucket = buckets.get(voucherId);
+        if (bucket == null) {
+            // 异步检查seckill:meta后才创建令牌桶，不在请求线程上访问redis；检查完成前由lua脚本兜底
+            if (pendingVouchers.size() < MAX_PENDING_VOUCHERS && pendingVouchers.add(voucherId)) {
+                rateRefreshScheduler.execute(() -> createBucket(voucherId));
+            }
+            return true;
+        }
+        // 1. 本地令牌桶
+        if (!bucket.tryAcquire()) {
+            return false;
+        }
+        // 2. 集群令牌桶，刷新任务创建之前只靠本地令牌桶
+        RRateLimiter rateLimiter = bucket.rateLimiter;
+        if (global && rateLimiter != null) {
+            try {
+                return rateLimiter.tryAcquire();
+            } catch (Exception e) {
+                // redis限流不可用时只靠本地令牌桶
+                log.error("global seckill rate limiter of voucher {} error", voucherId, e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * stock / conversion per second, not below minRate
+     */
+    private long rateOf(Long voucherId) {
+        int stock = remainingStock(voucherId);
+        return Math.max(minRate, (long) Math.ceil(stock / Math.max(conversion, 0.01)));
+    }
+
+    /**
+     * seckill:stock:{id}, or the sum of seckill:stock:{id}:{b} when the stock is segmented
+     */
+    private int remainingStock(Long voucherId) {
+        String segments = stringRedisTemplate.opsForValue().get(SECKILL_SEGMENTS_KEY + voucherId);
+        if (StrUtil.isBlank(segments)) {
+            String stock = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId);
+            return StrUtil.isBlank(stock) ? 0 : Math.max(0, Integer.parseInt(stock));
+        }
+        int k = Integer.parseInt(segments);
+        List<String> keys = new ArrayList<>(k);
+        for (int b = 0; b < k; b++) {
+            keys.add(SECKILL_STOCK_KEY + voucherId + ":" + b);
+        }
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(keys);
+        int total = 0;
+        if (stocks != null) {
+            for (String stock : stocks) {
+                total += StrUtil.isBlank(stock) ? 0 : Math.max(0, Integer.parseInt(stock));
+            }
+        }
+        return total;
+    }
+
+    private class TokenBucket {
+        private final Long voucherId;
+        /**
+         * cluster wide rate, written by the refresh task only, the local bucket refills at rate / nodes
+         * with a capacity of one second
+         */
+        private volatile long rate;
+        private double tokens;
+        private long lastRefillNanos;
+        private volatile RRateLimiter rateLimiter;
+        private volatile long lastAcquireMillis;
+
+        private TokenBucket(Long voucherId, long rate) {
+            this.voucherId = voucherId;
+            this.rate = rate;
+            this.tokens = capacity();
+            this.lastRefillNanos = System.nanoTime();
+            this.lastAcquireMillis = System.currentTimeMillis();
+        }
+
+        private double localRate() {
+            return (double) rate / Math.max(1, nodes);
+        }
+
+        /**
+         * one second of localRate but at least one token, otherwise rate < nodes could never grant a permit
+         */
+        private double capacity() {
+            return Math.max(1, localRate());
+        }
+
+        /**
+         * local only, never touches redis
+         */
+        private synchronized boolean tryAcquire() {
+            lastAcquireMillis = System.currentTimeMillis();
+            // 1. 按本地速率补充令牌，容量为一秒的量且不少于1个，低速率时小数令牌逐渐累积到1
+            long now = System.nanoTime();
+            tokens = Math.min(capacity(), tokens + (now - lastRefillNanos) / 1e9 * localRate());
+            lastRefillNanos = now;
+            // 2. 取令牌
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        /**
+         * runs on the refresh scheduler: re-read the remaining stock and adjust the local and global rate
+         */
+        private void refreshRate() {
+            try {
+                long newRate = rateOf(voucherId);
+                if (global && rateLimiter == null) {
+                    RRateLimiter limiter = redissonClient.getRateLimiter(SECKILL_LIMITER_KEY + voucherId);
+                    limiter.trySetRate(RateType.OVERALL, newRate, 1, RateIntervalUnit.SECONDS);
+                    rateLimiter = limiter;
+                } else if (rateLimiter != null && newRate != rate) {
+                    rateLimiter.setRate(RateType.OVERALL, newRate, 1, RateIntervalUnit.SECONDS);
+                }
+                rate = newRate;
+            } catch (Exception e) {
+                log.error("refresh seckill rate of voucher {} error", voucherId, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ tb_voucher_order upgrade for databases created from an earlier hmdp.sql, fresh installs already have these in hmdp.sql
+
+ - active: generated column, 1 for live orders and NULL for cancelled ones (status = 4)
+ - uk_user_voucher(user_id, voucher_id, active): one live order per user and voucher, the insert relies on it
+   for idempotency (ON DUPLICATE KEY) and cancelled orders no longer block a new one
+ - idx_voucher_status(voucher_id, status): stock reconcile / prewarm count orders per voucher and status
+
+ Run once, MySQL 5.7+. It works both on the original schema (no unique index) and on one that already has
+ uk_user_voucher(user_id, voucher_id).
+*/
+SET NAMES utf8mb4;
+
+-- ----------------------------
+-- 1. 先检查重复的有效订单，有结果时唯一索引会创建失败，需要先人工取消多余的订单（status = 4）
+-- ----------------------------
+SELECT `user_id`, `voucher_id`, COUNT(*) AS `orders`
+FROM `tb_voucher_order`
+WHERE `status` <> 4
+GROUP BY `user_id`, `voucher_id`
+HAVING COUNT(*) > 1;
+
+-- ----------------------------
+-- 2. active 生成列
+-- ----------------------------
+SET @ddl = IF((SELECT COUNT(*) FROM information_schema.COLUMNS
+               WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tb_voucher_order' AND COLUMN_NAME = 'active') = 0,
+    'ALTER TABLE `tb_voucher_order` ADD COLUMN `active` tinyint(1) UNSIGNED GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL COMMENT ''未取消为1，已取消为NULL，取消的订单不再占用一人一单的唯一索引''',
+    'SELECT 1');
+PREPARE stmt FROM @ddl;
+EXECUTE stmt;
+DEALLOCATE PREPARE stmt;
+
+-- ----------------------------
+-- 3. 旧的 uk_user_voucher(user_id, voucher_id) 替换为包含 active 的唯一索引
+-- ----------------------------
+SET @ddl = IF((SELECT COUNT(*) FROM information_schema.STATISTICS
+               WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tb_voucher_order' AND INDEX_NAME = 'uk_user_voucher') > 0,
+    'ALTER TABLE `tb_voucher_order` DROP INDEX `uk_user_voucher`',
+    'SELECT 1');
+PREPARE stmt FROM @ddl;
+EXECUTE stmt;
+DEALLOCATE PREPARE stmt;
+
+ALTER TABLE `tb_voucher_order` ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE;
+
+-- ----------------------------
+-- 4. idx_voucher_status
+-- ----------------------------
+SET @ddl = IF((SELECT COUNT(*) FROM information_schema.STATISTICS
+               WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tb_voucher_order' AND INDEX_NAME = 'idx_voucher_status') = 0,
+    'ALTER TABLE `tb_voucher_order` ADD INDEX `idx_voucher_status`(`voucher_id`, `status`) USING BTREE',
+    'SELECT 1');
+PREPARE stmt FROM @ddl;
+EXECUTE stmt;
+DEALLOCATE PREPARE stmt;
@@ -0,0 +1,11 @@
+-- claim due members of a delay queue zset
+-- KEYS[1] delay queue key
+-- ARGV[1] now (ms), ARGV[2] max members, ARGV[3] lease (ms)
+local members = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[2]))
+-- claimed members are pushed back by the lease instead of removed,
+-- a worker that dies before ZREM leaves them to be claimed again
+local leaseUntil = tonumber(ARGV[1]) + tonumber(ARGV[3])
+for i = 1, #members do
+    redis.call('zadd', KEYS[1], leaseUntil, members[i])
+end
+return members
@@ -0,0 +1,35 @@
+-- return the stock of a cancelled seckill order
+-- 1. 参数列表
+local voucherId = ARGV[1]
+local userId = ARGV[2]
+local orderId = ARGV[3]
+-- ttl seconds of the order:cancelled:{orderId} marker
+local cancelledTtl = tonumber(ARGV[4]) or 604800
+
+-- 2. 每个订单只归还一次：SET order:cancelled:{orderId} NX，已存在说明已经归还过，保证重试幂等
+--    不能只看已购集合，取消后同一用户可以再次购买，重试会误删新订单的资格并重复归还库存
+if (not redis.call('set', 'order:cancelled:' .. orderId, '1', 'NX', 'EX', cancelledTtl)) then
+    return 0
+end
+redis.call('srem', 'seckill:users:' .. voucherId, userId)
+
+-- 3. 归还库存，分段库存归还到用户自己的桶
+local stockKey = 'seckill:stock:' .. voucherId
+local segments = tonumber(redis.call('get', 'seckill:segments:' .. voucherId) or '0')
+if (segments > 0) then
+    stockKey = stockKey .. ':' .. (tonumber(userId) % segments)
+end
+-- 秒杀结束后库存key已过期，不再重建
+if (redis.call('exists', stockKey) == 1) then
+    redis.call('incrby', stockKey, 1)
+end
+
+-- 4. 订单状态
+local statusKey = 'order:status:' .. orderId
+if (redis.call('exists', statusKey) == 1) then
+    redis.call('hset', statusKey, 'status', 'CANCELLED')
+end
+
+-- 5. 通知所有节点清除售罄标记和已购用户
+redis.call('publish', 'seckill:restocked', voucherId .. ':' .. userId)
+return 1
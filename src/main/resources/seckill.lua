@@ -9,34 +9,142 @@
 local voucherId = ARGV[1]
 -- 1.2 user id
 local userId = ARGV[2]
--- 1.3 order id
+-- 1.3 order id, empty means the script generates it after the checks pass
 local orderId = ARGV[3]
+-- 1.4 order stream partitions, 0 means the single stream.orders
+local partitions = tonumber(ARGV[4]) or 0
+-- 1.5 RedisIdWorker.BEGIN_TIMESTAMP and the zone offset of the caller, only used to generate the order id
+local beginTimestamp = tonumber(ARGV[5]) or 0
+local offsetSeconds = tonumber(ARGV[6]) or 0
+-- 1.6 whether to XADD the order, '0' when the java side publishes it to another order queue
+local publish = (ARGV[7] ~= '0')
+-- 1.7 ttl seconds of order:status:{orderId}
+local statusTtl = tonumber(ARGV[8]) or 86400
+local generateId = (orderId == nil or orderId == '')
+
+-- in generate mode the result is {status} or {0, orderId}, otherwise just status
+local function reply(status)
+    if (generateId) then
+        return { status }
+    end
+    return status
+end
+
+-- days since 1970-01-01 -> 'yyyy:MM:dd', same as the date part of the RedisIdWorker counter key
+local function formatDate(days)
+    days = days + 719468
+    local era = math.floor(days / 146097)
+    local doe = days - era * 146097
+    local yoe = math.floor((doe - math.floor(doe / 1460) + math.floor(doe / 36524) - math.floor(doe / 146096)) / 365)
+    local doy = doe - (365 * yoe + math.floor(yoe / 4) - math.floor(yoe / 100))
+    local mp = math.floor((5 * doy + 2) / 153)
+    local d = doy - math.floor((153 * mp + 2) / 5) + 1
+    local m = mp < 10 and mp + 3 or mp - 9
+    local y = yoe + era * 400
+    if (m <= 2) then
+        y = y + 1
+    end
+    return string.format('%04d:%02d:%02d', y, m, d)
+end
+
+-- timestamp << 32 | seq as a decimal string, lua numbers are doubles and can't hold 64 bits
+local function composeId(timestamp, seq)
+    local base = 1000000
+    local t1, t0 = math.floor(timestamp / base), timestamp % base
+    local s1, s0 = math.floor(seq / base), seq % base
+    -- 2^32 = 4294 * base + 967296
+    local c0 = t0 * 967296 + s0
+    local c1 = t1 * 967296 + t0 * 4294 + s1 + math.floor(c0 / base)
+    local c2 = t1 * 4294 + math.floor(c1 / base)
+    if (c2 > 0) then
+        return string.format('%d%06d%06d', c2, c1 % base, c0 % base)
+    end
+    if (c1 > 0) then
+        return string.format('%d%06d', c1, c0 % base)
+    end
+    return string.format('%d', c0)
+end
 
 -- 2. keys list
 -- 2.1 stock key
 local stockKey = 'seckill:stock:' .. voucherId
 -- 2.2 users key
 local usersKey = 'seckill:users:' .. voucherId
+-- 2.3 stock segments of this voucher, 0 means the single stock key
+local segments = tonumber(redis.call('get', 'seckill:segments:' .. voucherId) or '0')
+-- 2.4 seckill window (epoch seconds), written by VoucherServiceImpl, absent for vouchers without metadata
+local meta = redis.call('hmget', 'seckill:meta:' .. voucherId, 'begin', 'end')
+-- 2.5 order stream key, orders of one voucher always go to the same partition
+local streamKey = 'stream.orders'
+if (partitions > 0) then
+    streamKey = 'stream.orders:' .. (tonumber(voucherId) % partitions)
+end
 
 -- 3. script scope
+-- 3.0 whether inside the seckill window
+if (meta[1] and meta[2]) then
+    redis.replicate_commands()
+    local now = tonumber(redis.call('time')[1])
+    if (now < tonumber(meta[1])) then
+        -- not started
+        return reply(3)
+    end
+    if (now > tonumber(meta[2])) then
+        -- ended
+        return reply(4)
+    end
+end
 -- 3.1 whether enough stock
-if (tonumber(redis.call('get', stockKey)) <= 0) then
-    -- 3.2 lack of stock
-    return 1
+if (segments > 0) then
+    -- segmented stock: start from the user's own bucket, fall back to the others
+    local start = tonumber(userId) % segments
+    stockKey = nil
+    for i = 0, segments - 1 do
+        local bucketKey = 'seckill:stock:' .. voucherId .. ':' .. ((start + i) % segments)
+        if (tonumber(redis.call('get', bucketKey) or '0') > 0) then
+            stockKey = bucketKey
+            break
+        end
+    end
+    if (stockKey == nil) then
+        -- 3.2 lack of stock in every bucket
+        return reply(1)
+    end
+elseif (tonumber(redis.call('get', stockKey) or '0') <= 0) then
+    -- 3.2 lack of stock, or the stock key already expired after the seckill window
+    return reply(1)
 end
 
 -- 3.2 whether current user already bought
 if (redis.call('sismember', usersKey, userId) == 1) then
     -- 3.3 already exists, repetitive order
-    return 2
+    return reply(2)
+end
+
+-- 3.4 qualified, generate order id if the caller didn't: INCR icr:order:{date}
+if (generateId) then
+    redis.replicate_commands()
+    local now = redis.call('time')
+    local localSecond = tonumber(now[1]) + offsetSeconds
+    local seq = redis.call('incr', 'icr:order:' .. formatDate(math.floor(localSecond / 86400)))
+    orderId = composeId(localSecond - beginTimestamp, seq)
 end
 
--- 3.4 qualified, reduce stock
+-- 3.5 reduce stock
 redis.call('incrby', stockKey, -1)
--- 3.5 create order, save user to users set
+-- 3.6 create order, save user to users set
 redis.call('sadd', usersKey, userId)
--- 3.6 add msg to msg queue: XADD stream.orders * k1 v1 k2 v2
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 3.7 add msg to msg queue: XADD stream.orders * k1 v1 k2 v2
+if (publish) then
+    redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+end
+-- 3.8 order status for GET /voucher-order/status/{id}, flipped by the order queue consumer
+local statusKey = 'order:status:' .. orderId
+redis.call('hset', statusKey, 'status', 'QUEUED', 'userId', userId)
+redis.call('expire', statusKey, statusTtl)
 
 -- 3 res status
+if (generateId) then
+    return { 0, orderId }
+end
 return 0
\ No newline at end of file
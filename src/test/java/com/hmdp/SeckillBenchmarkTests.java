@@ -0,0 +1,310 @@
+package com.hmdp;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.io.IoUtil;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.IOrderQueue;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+
+/**
+ * seckill load benchmark, skipped unless -Dhmdp.bench=true:
+ * <pre>
+ * mvn test -Dtest=SeckillBenchmarkTests -Dhmdp.bench=true \
+ *     -Dhmdp.bench.datasource-url=jdbc:mysql://127.0.0.1:3306/hmdp_bench -Dhmdp.bench.clients=2000
+ * </pre>
+ * a redis-server (hmdp.bench.redis-server, from PATH by default) is started on a free port unless
+ * hmdp.bench.redis-port points to a running one. hmdp.bench.datasource-url is required and should be a
+ * dedicated schema holding hmdp.sql, never the database of application.yaml; the voucher and orders the
+ * run creates are deleted afterwards. Users and login tokens are seeded in redis only, the result is
+ * written to hmdp.bench.out/seckill-{time}.json
+ */
+@EnabledIfSystemProperty(named = "hmdp.bench", matches = "true")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class SeckillBenchmarkTests {
+
+    private static final int USERS = Integer.getInteger("hmdp.bench.users", 5000);
+    private static final int CLIENTS = Integer.getInteger("hmdp.bench.clients", 1000);
+    private static final int REQUESTS_PER_USER = Integer.getInteger("hmdp.bench.requests-per-user", 2);
+    private static final int STOCK = Integer.getInteger("hmdp.bench.stock", 500);
+    private static final long DRAIN_TIMEOUT_MS = Long.getLong("hmdp.bench.drain-timeout-ms", 60000L);
+    private static final String OUT_DIR = System.getProperty("hmdp.bench.out", "target/bench");
+
+    private static Process redisServer;
+
+    @LocalServerPort
+    private int port;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private IOrderQueue orderQueue;
+
+    @DynamicPropertySource
+    static void benchProperties(DynamicPropertyRegistry registry) throws Exception {
+        // 压测会写入优惠券和订单，必须显式指定独立的库
+        String datasourceUrl = System.getProperty("hmdp.bench.datasource-url");
+        if (datasourceUrl == null || datasourceUrl.isEmpty()) {
+            throw new IllegalStateException("-Dhmdp.bench.datasource-url is required, point it at a dedicated schema");
+        }
+        registry.add("spring.datasource.url", () -> datasourceUrl);
+        Integer redisPort = Integer.getInteger("hmdp.bench.redis-port");
+        if (redisPort == null) {
+            redisPort = startRedisServer();
+        }
+        int p = redisPort;
+        registry.add("spring.redis.host", () -> "127.0.0.1");
+        registry.add("spring.redis.port", () -> p);
+    }
+
+    private static int startRedisServer() throws Exception {
+        int redisPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            redisPort = socket.getLocalPort();
+        }
+        redisServer = new ProcessBuilder(System.getProperty("hmdp.bench.redis-server", "redis-server"),
+                "--port", String.valueOf(redisPort), "--save", "", "--appendonly", "no")
+                .redirectErrorStream(true)
+                .redirectOutput(new File(FileUtil.mkdir(OUT_DIR), "redis-server.log"))
+                .start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            try (Socket ignored = new Socket("127.0.0.1", redisPort)) {
+                return redisPort;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        redisServer.destroyForcibly();
+        throw new IllegalStateException("redis-server did not start on port " + redisPort);
+    }
+
+    @AfterAll
+    static void stopRedisServer() {
+        if (redisServer != null) {
+            redisServer.destroy();
+        }
+    }
+
+    @Test
+    void benchmarkSeckill() throws Exception {
+        // 1. seed: one seckill voucher, USERS logged in users
+        Long voucherId = addVoucher();
+        try {
+            benchmarkSeckill(voucherId);
+        } finally {
+            deleteVoucher(voucherId);
+        }
+    }
+
+    private void benchmarkSeckill(Long voucherId) throws Exception {
+        List<String> tokens = seedTokens();
+
+        // 2. drive: CLIENTS threads, every user sends REQUESTS_PER_USER requests
+        int total = USERS * REQUESTS_PER_USER;
+        long[] latencies = new long[total];
+        AtomicInteger next = new AtomicInteger();
+        Map<String, LongAdder> responses = new ConcurrentHashMap<>();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(CLIENTS);
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        String url = "http://127.0.0.1:" + port + "/voucher-order/seckill/" + voucherId;
+        for (int c = 0; c < CLIENTS; c++) {
+            clients.execute(() -> {
+                try {
+                    start.await();
+                    int i;
+                    while ((i = next.getAndIncrement()) < total) {
+                        long begin = System.nanoTime();
+                        String outcome = post(url, tokens.get(i % USERS));
+                        latencies[i] = System.nanoTime() - begin;
+                        responses.computeIfAbsent(outcome, k -> new LongAdder()).increment();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long durationNanos = System.nanoTime() - begin;
+        clients.shutdown();
+
+        // 3. consumer lag: time until every accepted order is in mysql
+        long accepted = responses.getOrDefault("ok", new LongAdder()).sum();
+        long drainBegin = System.currentTimeMillis();
+        long orders = countOrders(voucherId);
+        while (orders < accepted && System.currentTimeMillis() - drainBegin < DRAIN_TIMEOUT_MS) {
+            Thread.sleep(100);
+            orders = countOrders(voucherId);
+        }
+        long drainMs = System.currentTimeMillis() - drainBegin;
+
+        // 4. oversell / duplicate checks
+        List<Long> userIds = voucherOrderService.query().select("user_id").eq("voucher_id", voucherId).list()
+                .stream().map(VoucherOrder::getUserId).collect(Collectors.toList());
+        long duplicateUsers = userIds.size() - new HashSet<>(userIds).size();
+        Integer dbStock = seckillVoucherService.getById(voucherId).getStock();
+
+        // 5. report
+        Arrays.sort(latencies);
+        JSONObject result = JSONUtil.createObj()
+                .set("time", LocalDateTime.now().toString())
+                .set("queue", orderQueue.getClass().getSimpleName())
+                .set("users", USERS)
+                .set("clients", CLIENTS)
+                .set("requests", total)
+                .set("stock", STOCK)
+                .set("durationMs", TimeUnit.NANOSECONDS.toMillis(durationNanos))
+                .set("throughput", total * 1e9 / durationNanos)
+                .set("latencyMs", JSONUtil.createObj()
+                        .set("p50", percentile(latencies, 0.50))
+                        .set("p99", percentile(latencies, 0.99))
+                        .set("p999", percentile(latencies, 0.999))
+                        .set("max", latencies[total - 1] / 1e6))
+                .set("responses", responses.entrySet().stream()
+                        .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().sum())))
+                .set("accepted", accepted)
+                .set("orders", userIds.size())
+                .set("drainMs", drainMs)
+                .set("drained", orders >= accepted)
+                .set("oversold", Math.max(0, userIds.size() - STOCK))
+                .set("duplicateUsers", duplicateUsers)
+                .set("dbStock", dbStock);
+        File out = new File(FileUtil.mkdir(OUT_DIR),
+                "seckill-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMddHHmmss")) + ".json");
+        FileUtil.writeUtf8String(result.toStringPretty(), out);
+        System.out.println(result.toStringPretty());
+        System.out.println("result = " + out.getAbsolutePath());
+    }
+
+    private Long addVoucher() {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("benchmark");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStock(STOCK);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    /**
+     * remove the rows the run created: its orders, the seckill voucher and the voucher
+     */
+    private void deleteVoucher(Long voucherId) {
+        voucherOrderService.update().eq("voucher_id", voucherId).remove();
+        seckillVoucherService.removeById(voucherId);
+        voucherService.removeById(voucherId);
+    }
+
+    /**
+     * login:token:{token} hashes for users 1..USERS, they don't need to exist in mysql
+     */
+    private List<String> seedTokens() {
+        List<String> tokens = new ArrayList<>(USERS);
+        for (int i = 1; i <= USERS; i++) {
+            tokens.add(UUID.randomUUID().toString(true));
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < USERS; i++) {
+                Map<byte[], byte[]> user = new HashMap<>(4);
+                user.put("id".getBytes(StandardCharsets.UTF_8), String.valueOf(i + 1).getBytes(StandardCharsets.UTF_8));
+                user.put("nickName".getBytes(StandardCharsets.UTF_8), ("bench" + (i + 1)).getBytes(StandardCharsets.UTF_8));
+                byte[] key = (LOGIN_USER_KEY + tokens.get(i)).getBytes(StandardCharsets.UTF_8);
+                connection.hMSet(key, user);
+                connection.expire(key, TimeUnit.HOURS.toSeconds(1));
+            }
+            return null;
+        });
+        return tokens;
+    }
+
+    /**
+     * @return "ok", the error message of the Result, or "error: ..." for transport failures
+     */
+    private static String post(String url, String token) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("authorization", token);
+            connection.setConnectTimeout(5000);
+            connection.setReadTimeout(30000);
+            int status = connection.getResponseCode();
+            // 读完并关闭响应流，连接留给keep-alive复用
+            String body;
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                body = in == null ? "" : IoUtil.read(in, StandardCharsets.UTF_8);
+            }
+            if (status != 200) {
+                return "http " + status;
+            }
+            JSONObject json = JSONUtil.parseObj(body);
+            return Boolean.TRUE.equals(json.getBool("success")) ? "ok" : json.getStr("errorMsg");
+        } catch (Exception e) {
+            return "error: " + e.getClass().getSimpleName();
+        }
+    }
+
+    private long countOrders(Long voucherId) {
+        return voucherOrderService.query().eq("voucher_id", voucherId).count();
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -13,6 +13,7 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 
 import javax.annotation.Resource;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
 import java.util.HashMap;
 import java.util.List;
@@ -47,7 +48,7 @@ public class TokenTests {
             stringRedisTemplate.expire(tokenKey, 365L, TimeUnit.DAYS);
         }
         Set<String> keys = stringRedisTemplate.keys(LOGIN_USER_KEY + "*");
-        @Cleanup FileWriter fileWriter = new FileWriter(System.getProperty("user.dir") + "\\token.txt");
+        @Cleanup FileWriter fileWriter = new FileWriter(new File(System.getProperty("user.dir"), "token.txt"));
         @Cleanup BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
         assert keys != null;
         for (String key : keys) {
@@ -0,0 +1,22 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * refresh-ahead of CacheClient, no redis needed
+ */
+class CacheClientTests {
+
+    @Test
+    void subMillisecondRebuildRefreshesEarlyNearExpiry() {
+        // 300µs load, 1ms left: -0.3 * ln(0.001) ≈ 2.07ms >= 1ms
+        assertTrue(CacheClient.shouldRefreshEarly(999L, 1000L, 300L, 1.0, 0.999));
+        // 10s left, far beyond any gap of a 300µs load
+        assertFalse(CacheClient.shouldRefreshEarly(0L, 10_000L, 300L, 1.0, 0.999));
+        // unknown cost never refreshes early
+        assertFalse(CacheClient.shouldRefreshEarly(999L, 1000L, 0L, 1.0, 0.999));
+    }
+}
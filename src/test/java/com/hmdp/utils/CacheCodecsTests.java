@@ -0,0 +1,100 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * value header of CacheCodecs, no redis needed
+ */
+class CacheCodecsTests {
+
+    @Test
+    void nullValuesRoundTrip() {
+        CacheCodecs cacheCodecs = cacheCodecs("binary");
+
+        assertNull(cacheCodecs.decode(cacheCodecs.encode(null), Shop.class));
+
+        byte[] logical = cacheCodecs.encodeWithLogicalExpire(null, 1000L);
+        assertEquals(1000L, CacheCodecs.expireAt(logical));
+        assertNull(cacheCodecs.decode(logical, Shop.class));
+
+        byte[] expireAt = cacheCodecs.encodeWithExpireAt(null, 2000L, 300L);
+        assertEquals(2000L, CacheCodecs.expireAt(expireAt));
+        assertEquals(300L, CacheCodecs.rebuildCostMicros(expireAt));
+        assertNull(cacheCodecs.decode(expireAt, Shop.class));
+    }
+
+    @Test
+    void expireAndRebuildCostAreReadFromTheHeader() {
+        CacheCodecs cacheCodecs = cacheCodecs("binary");
+        Shop shop = shop("shop");
+
+        byte[] plain = cacheCodecs.encode(shop);
+        assertTrue(CacheCodecs.isFramed(plain));
+        assertFalse(CacheCodecs.hasExpireAt(plain));
+        assertEquals(0L, CacheCodecs.rebuildCostMicros(plain));
+
+        byte[] logical = cacheCodecs.encodeWithLogicalExpire(shop, 1000L);
+        assertEquals(1000L, CacheCodecs.expireAt(logical));
+        assertEquals(0L, CacheCodecs.rebuildCostMicros(logical));
+        assertEquals("shop", cacheCodecs.decode(logical, Shop.class).getName());
+
+        // sub-millisecond loads keep their cost
+        byte[] expireAt = cacheCodecs.encodeWithExpireAt(shop, 2000L, 300L);
+        assertEquals(2000L, CacheCodecs.expireAt(expireAt));
+        assertEquals(300L, CacheCodecs.rebuildCostMicros(expireAt));
+        assertEquals("shop", cacheCodecs.decode(expireAt, Shop.class).getName());
+    }
+
+    @Test
+    void largeValuesAreDeflated() {
+        for (String codec : Arrays.asList("json", "binary")) {
+            CacheCodecs cacheCodecs = cacheCodecs(codec);
+            Shop shop = shop(StrUtil.repeat("deflate me ", 500));
+
+            byte[] bytes = cacheCodecs.encodeWithExpireAt(shop, 3000L, 42L);
+
+            assertTrue(bytes.length < shop.getName().length(), codec);
+            assertEquals(3000L, CacheCodecs.expireAt(bytes));
+            assertEquals(42L, CacheCodecs.rebuildCostMicros(bytes));
+            assertEquals(shop.getName(), cacheCodecs.decode(bytes, Shop.class).getName());
+        }
+    }
+
+    @Test
+    void plainJsonWrittenBeforeTheHeaderIsStillRead() {
+        byte[] legacy = JSONUtil.toJsonStr(shop("legacy")).getBytes(StandardCharsets.UTF_8);
+
+        assertFalse(CacheCodecs.isFramed(legacy));
+        assertEquals("legacy", cacheCodecs("binary").decode(legacy, Shop.class).getName());
+    }
+
+    private static Shop shop(String name) {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName(name);
+        return shop;
+    }
+
+    private static CacheCodecs cacheCodecs(String codecName) {
+        JsonCacheCodec jsonCacheCodec = new JsonCacheCodec();
+        CacheCodecs cacheCodecs = new CacheCodecs();
+        ReflectionTestUtils.setField(cacheCodecs, "codecName", codecName);
+        ReflectionTestUtils.setField(cacheCodecs, "compressThreshold", 1024);
+        ReflectionTestUtils.setField(cacheCodecs, "codecList", Arrays.asList(jsonCacheCodec, new BinaryCacheCodec()));
+        ReflectionTestUtils.setField(cacheCodecs, "jsonCacheCodec", jsonCacheCodec);
+        cacheCodecs.init();
+        return cacheCodecs;
+    }
+}
@@ -0,0 +1,147 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * JournalOrderQueue on a temp dir, redis is replaced by a template that ignores the status pipeline
+ */
+class JournalOrderQueueTests {
+
+    @TempDir
+    File dir;
+
+    private final List<JournalOrderQueue> opened = new ArrayList<>();
+
+    @AfterEach
+    void closeQueues() {
+        for (JournalOrderQueue queue : opened) {
+            queue.stop(1000);
+            queue.close();
+        }
+    }
+
+    @Test
+    void publishedOrdersAreConsumedOnceAcrossRestart() throws Exception {
+        JournalOrderQueue queue = open();
+        List<Long> consumed = new CopyOnWriteArrayList<>();
+        queue.start(collect(consumed));
+        queue.publish(order(1L));
+        queue.publish(order(2L));
+        awaitSize(consumed, 2);
+        queue.stop(1000);
+        queue.close();
+        opened.remove(queue);
+
+        // 重启后从checkpoint继续，已消费的订单不会重放
+        JournalOrderQueue restarted = open();
+        List<Long> replayed = new CopyOnWriteArrayList<>();
+        restarted.start(collect(replayed));
+        restarted.publish(order(3L));
+        awaitSize(replayed, 1);
+        assertEquals(Collections.singletonList(3L), replayed);
+        assertEquals(2, consumed.size());
+    }
+
+    @Test
+    void unconsumedOrdersAreReplayedAfterRestart() throws Exception {
+        JournalOrderQueue queue = open();
+        queue.publish(order(1L));
+        queue.publish(order(2L));
+        queue.close();
+        opened.remove(queue);
+
+        JournalOrderQueue restarted = open();
+        List<Long> consumed = new CopyOnWriteArrayList<>();
+        restarted.start(collect(consumed));
+        awaitSize(consumed, 2);
+        assertEquals(2, consumed.size());
+    }
+
+    @Test
+    void timedOutPublishIsNeverConsumed() throws Exception {
+        JournalOrderQueue queue = open();
+        List<Long> consumed = new CopyOnWriteArrayList<>();
+        queue.start(collect(consumed));
+        // 停掉刷盘线程并等它退出，否则尚未运行的刷盘线程仍可能刷下随后追加的记录，fsync永远不会完成
+        ExecutorService journalFlusher = (ExecutorService) ReflectionTestUtils.getField(queue, "journalFlusher");
+        journalFlusher.shutdownNow();
+        assertTrue(journalFlusher.awaitTermination(1, TimeUnit.SECONDS));
+
+        assertThrows(IllegalStateException.class, () -> queue.publish(order(1L)));
+        Thread.sleep(100);
+        assertTrue(consumed.isEmpty());
+
+        // close强制刷盘后墓碑落盘，重启后跳过它，后续订单追加在它之后
+        queue.stop(1000);
+        queue.close();
+        opened.remove(queue);
+        JournalOrderQueue restarted = open();
+        List<Long> replayed = new CopyOnWriteArrayList<>();
+        restarted.start(collect(replayed));
+        restarted.publish(order(2L));
+        awaitSize(replayed, 1);
+        Thread.sleep(100);
+        assertEquals(Collections.singletonList(2L), replayed);
+    }
+
+    private JournalOrderQueue open() throws Exception {
+        JournalOrderQueue queue = new JournalOrderQueue();
+        ReflectionTestUtils.setField(queue, "stringRedisTemplate", new StringRedisTemplate() {
+            @Override
+            public List<Object> executePipelined(RedisCallback<?> action) {
+                return Collections.emptyList();
+            }
+        });
+        ReflectionTestUtils.setField(queue, "journalDir", dir.getAbsolutePath());
+        ReflectionTestUtils.setField(queue, "segmentSizeMb", 1);
+        ReflectionTestUtils.setField(queue, "flushIntervalMs", 10L);
+        ReflectionTestUtils.setField(queue, "fsyncTimeoutMs", 200L);
+        ReflectionTestUtils.setField(queue, "orderBatchSize", 10);
+        ReflectionTestUtils.setField(queue, "orderBatchLingerMs", 5L);
+        queue.init();
+        opened.add(queue);
+        return queue;
+    }
+
+    private static IOrderQueue.OrderHandler collect(List<Long> consumed) {
+        return voucherOrders -> {
+            consumed.addAll(voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+            return Collections.emptyMap();
+        };
+    }
+
+    private static VoucherOrder order(Long id) {
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(id);
+        voucherOrder.setUserId(id + 100);
+        voucherOrder.setVoucherId(7L);
+        return voucherOrder;
+    }
+
+    private static void awaitSize(List<Long> consumed, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (consumed.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, consumed.size());
+    }
+}